@@ -0,0 +1,146 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Derives per-call timeouts from the latencies previously observed for similar calls.
+ * <p/>
+ * Calls are grouped into expression classes made of their top-level function (e.g.
+ * <tt>integrate</tt>, <tt>solve</tt>) and a power-of-two bucket of their input length.
+ * Once a class has enough samples, its timeout is the configured latency percentile
+ * times a multiplier, rounded up to whole seconds and bounded by a hard cap. Until
+ * then the caller's fallback timeout is used.
+ * <p/>
+ * An instance of this class is thread-safe, and is meant to be shared by all processes
+ * of a {@link MaximaProcessLauncher}.
+ *
+ * @author tengyt
+ */
+public class MaximaAdaptiveTimeout {
+
+    public static final double DEFAULT_PERCENTILE = 0.99;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final int DEFAULT_HARD_CAP = 60;
+
+    /**
+     * Number of samples a class needs before its timeout is derived from them
+     */
+    static final int MIN_SAMPLES = 20;
+
+    /**
+     * Number of most recent samples kept per class
+     */
+    static final int WINDOW_SIZE = 256;
+
+    private static final Pattern TOP_LEVEL_FUNCTION = Pattern.compile("^\\s*([A-Za-z_%][A-Za-z0-9_%]*)\\s*\\(");
+
+    private final double percentile;
+    private final double multiplier;
+    private final int hardCap;
+    private final ConcurrentMap<String, LatencyWindow> windows;
+
+    public MaximaAdaptiveTimeout(final MaximaConfiguration maximaConfiguration) {
+        this(maximaConfiguration.getAdaptiveTimeoutPercentile(), maximaConfiguration.getAdaptiveTimeoutMultiplier(),
+                maximaConfiguration.getAdaptiveTimeoutCap());
+    }
+
+    /**
+     * @param percentile latency percentile to base timeouts on, between 0 and 1
+     * @param multiplier factor applied to the percentile latency
+     * @param hardCap    maximum timeout in seconds, whatever the statistics say
+     */
+    public MaximaAdaptiveTimeout(final double percentile, final double multiplier, final int hardCap) {
+        Preconditions.checkArgument(percentile > 0 && percentile <= 1, "percentile must be in (0,1]");
+        Preconditions.checkArgument(multiplier >= 1, "multiplier must be at least 1");
+        Preconditions.checkArgument(hardCap > 0, "hardCap must be positive");
+        this.percentile = percentile;
+        this.multiplier = multiplier;
+        this.hardCap = hardCap;
+        this.windows = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the timeout (in seconds) to use for the given input.
+     *
+     * @param fallbackTimeout timeout to use while there are not enough samples; if zero or less
+     *                        (i.e. no timeout) the hard cap is used instead
+     */
+    public int timeoutFor(final String maximaInput, final int fallbackTimeout) {
+        final LatencyWindow window = windows.get(classify(maximaInput));
+        final long percentileNanos = window != null ? window.percentile(percentile) : -1;
+        if (percentileNanos < 0) {
+            return fallbackTimeout > 0 ? Math.min(fallbackTimeout, hardCap) : hardCap;
+        }
+        final double seconds = percentileNanos * multiplier / TimeUnit.SECONDS.toNanos(1);
+        return (int) Math.max(1, Math.min(hardCap, Math.ceil(seconds)));
+    }
+
+    /**
+     * Records the latency of a call that completed normally. Calls that timed out should
+     * not be recorded, as their real latency is unknown.
+     */
+    public void record(final String maximaInput, final long elapsedNanos) {
+        final String expressionClass = classify(maximaInput);
+        LatencyWindow window = windows.get(expressionClass);
+        if (window == null) {
+            final LatencyWindow newWindow = new LatencyWindow();
+            window = windows.putIfAbsent(expressionClass, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+        window.add(elapsedNanos);
+    }
+
+    /**
+     * Returns the expression class of the given input, e.g. <tt>integrate/64</tt>.
+     */
+    static String classify(final String maximaInput) {
+        final String function;
+        if (maximaInput.trim().startsWith(":lisp")) {
+            function = ":lisp";
+        } else {
+            final Matcher matcher = TOP_LEVEL_FUNCTION.matcher(maximaInput);
+            function = matcher.find() ? matcher.group(1) : "";
+        }
+        return function + "/" + Integer.highestOneBit(Math.max(maximaInput.length(), 1));
+    }
+
+    /**
+     * Fixed-size ring of the most recent latencies of one expression class.
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+
+        synchronized void add(final long elapsedNanos) {
+            samples[next] = elapsedNanos;
+            next = (next + 1) % WINDOW_SIZE;
+            count = Math.min(count + 1, WINDOW_SIZE);
+        }
+
+        /**
+         * Returns the given percentile, or -1 if there are too few samples.
+         */
+        long percentile(final double percentile) {
+            final long[] sorted;
+            synchronized (this) {
+                if (count < MIN_SAMPLES) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
@@ -8,6 +8,7 @@ import com.tsinghuabigdata.config.ResourceFinder;
 import org.apache.logging.log4j.Logger;
 
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 
@@ -21,12 +22,50 @@ import java.util.Properties;
 public class MaximaConfiguration {
     private static final Logger LOG = LogFactory.getLogger(MaximaConfiguration.class);
 
+    /**
+     * How {@link MaximaProcessLauncher} talks to the Maxima processes it launches.
+     */
+    public enum Transport {
+
+        /**
+         * Over the STDIN/STDOUT pipes of the process
+         */
+        PIPE,
+
+        /**
+         * Over a local socket, with Maxima started in client-server mode (<tt>-s &lt;port&gt;</tt>)
+         * and connecting back to a {@link MaximaSocketTransport}
+         */
+        SOCKET
+    }
+
     public static final String DEFAULT_CONFIG_FILE = "maxima.properties";
 
     public static final String EXECUTABLE_KEY = "maxima.executable.path";
     public static final String DEFAULT_TIMEOUT_KEY = "maxima.default.timeout";
     public static final String EXECUTABLE_ARGS_PREFIX_KEY = "maxima.executable.arg";
     public static final String EXECUTABLE_ENV_ARGS_PREFIX_KEY = "maxima.executable.env";
+    public static final String STARTUP_TIMEOUT_KEY = "maxima.startup.timeout";
+    public static final String TRANSPORT_KEY = "maxima.transport";
+    public static final String TRANSPORT_PORT_KEY = "maxima.transport.port";
+    public static final String POOL_SIZE_KEY = "maxima.pool.size";
+    public static final String POOL_MIN_SIZE_KEY = "maxima.pool.minSize";
+    public static final String POOL_AUTOSCALE_INTERVAL_KEY = "maxima.pool.autoscale.interval";
+    public static final String ZYGOTE_KEY = "maxima.zygote";
+    public static final String PIN_CPUS_KEY = "maxima.pin.cpus";
+    public static final String RESULT_CACHE_DIR_KEY = "maxima.cache.dir";
+    public static final String RESULT_CACHE_MAX_BYTES_KEY = "maxima.cache.maxBytes";
+    public static final String FAST_PATH_KEY = "maxima.fastpath";
+    public static final String ADAPTIVE_TIMEOUT_KEY = "maxima.timeout.adaptive";
+    public static final String ADAPTIVE_TIMEOUT_PERCENTILE_KEY = "maxima.timeout.adaptive.percentile";
+    public static final String ADAPTIVE_TIMEOUT_MULTIPLIER_KEY = "maxima.timeout.adaptive.multiplier";
+    public static final String ADAPTIVE_TIMEOUT_CAP_KEY = "maxima.timeout.adaptive.cap";
+    public static final String LAUNCH_RATE_KEY = "maxima.launch.rate";
+    public static final String LAUNCH_FAILURE_THRESHOLD_KEY = "maxima.launch.failureThreshold";
+    public static final String LAUNCH_INITIAL_BACKOFF_KEY = "maxima.launch.backoff.initial";
+    public static final String LAUNCH_MAX_BACKOFF_KEY = "maxima.launch.backoff.max";
+    public static final String SLOW_CALL_THRESHOLD_KEY = "maxima.slowcall.threshold";
+    public static final String SLOW_CALL_SAMPLE_RATE_KEY = "maxima.slowcall.sampleRate";
 
     /**
      * Full path to your Maxima executable file.
@@ -59,6 +98,142 @@ public class MaximaConfiguration {
      */
     private int defaultCallTimeout;
 
+    /**
+     * Time to wait for a newly launched Maxima process to become ready.
+     * <p/>
+     * Set this to zero to use the default value of {@link MaximaProcessLauncher#DEFAULT_STARTUP_TIMEOUT}.
+     */
+    private int startupTimeout;
+
+    /**
+     * How to talk to Maxima processes.
+     */
+    private Transport transport;
+
+    /**
+     * Local port the {@link MaximaSocketTransport} listens on when using {@link Transport#SOCKET}.
+     * <p/>
+     * Set this to zero to pick a free port. Use a fixed port if Maxima servers started
+     * independently are to be attached with {@link MaximaProcessLauncher#attachInteractiveProcess()}.
+     */
+    private int transportPort;
+
+    /**
+     * Maximum number of Maxima processes kept by a {@link MaximaProcessPool}.
+     * <p/>
+     * Set this to zero (or less) to use one process per available processor (taking
+     * cgroup CPU quotas into account).
+     */
+    private int poolSize;
+
+    /**
+     * Number of Maxima processes a {@link MaximaPoolAutoscaler} never shrinks a pool below.
+     */
+    private int poolMinSize;
+
+    /**
+     * Interval (in milliseconds) between two adjustments made by a {@link MaximaPoolAutoscaler}.
+     */
+    private long poolAutoscaleInterval;
+
+    /**
+     * Whether to create Maxima processes by forking a {@link MaximaZygote} instead of
+     * launching each of them from scratch. Forked processes talk to us over the socket
+     * transport, whatever {@link #transport} says, and are not pinned to CPUs.
+     * <p/>
+     * This needs Maxima built on SBCL; if the zygote can't be started, processes are
+     * launched normally.
+     */
+    private boolean zygote;
+
+    /**
+     * Whether to pin each launched Maxima process to a CPU of its own (as far as possible)
+     * using <tt>taskset</tt>. This only works on Linux.
+     */
+    private boolean pinCpus;
+
+    /**
+     * Directory holding the persistent {@link MaximaResultCache}.
+     * <p/>
+     * Leave this empty (the default) to disable the persistent cache.
+     */
+    private String resultCacheDir;
+
+    /**
+     * Maximum size (in bytes) of the persistent {@link MaximaResultCache} file.
+     */
+    private long resultCacheMaxBytes;
+
+    /**
+     * Whether trivial arithmetic calls are evaluated in the JVM by {@link MaximaFastPath}
+     * instead of by Maxima.
+     * <p/>
+     * Only turn this on if Maxima starts with <tt>display2d:false</tt> (e.g. set in its
+     * <tt>maxima-init.mac</tt>), as the fast path produces one-line output. It is switched
+     * off for a process after a soft reset, as <tt>reset()</tt> restores
+     * <tt>display2d:true</tt>.
+     * <p/>
+     * Calls answered this way don't get output labels. The fast path is switched off for a
+     * process as soon as an input refers to earlier outputs (<tt>%</tt>, <tt>%o1</tt>,
+     * <tt>%th(1)</tt> and so on), but that input may already see the wrong output, so
+     * don't turn this on for sessions relying on output history.
+     */
+    private boolean fastPath;
+
+    /**
+     * Whether calls made with the default timeout should use a {@link MaximaAdaptiveTimeout}
+     * derived from the latencies of similar calls instead of {@link #defaultCallTimeout}.
+     */
+    private boolean adaptiveTimeout;
+
+    /**
+     * Latency percentile (between 0 and 1) adaptive timeouts are based on.
+     */
+    private double adaptiveTimeoutPercentile;
+
+    /**
+     * Factor applied to the percentile latency to get an adaptive timeout.
+     */
+    private double adaptiveTimeoutMultiplier;
+
+    /**
+     * Hard upper bound (in seconds) on adaptive timeouts.
+     */
+    private int adaptiveTimeoutCap;
+
+    /**
+     * Maximum number of Maxima processes launched per second.
+     */
+    private double launchRate;
+
+    /**
+     * Number of consecutive launch failures after which launches are suspended
+     * (see {@link MaximaLaunchGuard}).
+     */
+    private int launchFailureThreshold;
+
+    /**
+     * Time (in milliseconds) launches are first suspended for after repeated failures.
+     */
+    private long launchInitialBackoff;
+
+    /**
+     * Upper bound (in milliseconds) on the time launches are suspended for.
+     */
+    private long launchMaxBackoff;
+
+    /**
+     * Calls taking at least this many milliseconds are logged by a {@link MaximaSlowCallLog}.
+     * <p/>
+     * Set this to zero (the default) to disable the slow-call log.
+     */
+    private long slowCallThreshold;
+
+    /**
+     * Fraction of slow calls logged by the {@link MaximaSlowCallLog}.
+     */
+    private double slowCallSampleRate;
+
 
     public MaximaConfiguration() {
     }
@@ -80,6 +255,90 @@ public class MaximaConfiguration {
         return defaultCallTimeout;
     }
 
+    public int getStartupTimeout() {
+        return startupTimeout;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public int getTransportPort() {
+        return transportPort;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getPoolMinSize() {
+        return poolMinSize;
+    }
+
+    public long getPoolAutoscaleInterval() {
+        return poolAutoscaleInterval;
+    }
+
+    public boolean isZygote() {
+        return zygote;
+    }
+
+    public boolean isPinCpus() {
+        return pinCpus;
+    }
+
+    public String getResultCacheDir() {
+        return resultCacheDir;
+    }
+
+    public long getResultCacheMaxBytes() {
+        return resultCacheMaxBytes;
+    }
+
+    public boolean isFastPath() {
+        return fastPath;
+    }
+
+    public boolean isAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
+
+    public double getAdaptiveTimeoutPercentile() {
+        return adaptiveTimeoutPercentile;
+    }
+
+    public double getAdaptiveTimeoutMultiplier() {
+        return adaptiveTimeoutMultiplier;
+    }
+
+    public int getAdaptiveTimeoutCap() {
+        return adaptiveTimeoutCap;
+    }
+
+    public double getLaunchRate() {
+        return launchRate;
+    }
+
+    public int getLaunchFailureThreshold() {
+        return launchFailureThreshold;
+    }
+
+    public long getLaunchInitialBackoff() {
+        return launchInitialBackoff;
+    }
+
+    public long getLaunchMaxBackoff() {
+        return launchMaxBackoff;
+    }
+
+    public long getSlowCallThreshold() {
+        return slowCallThreshold;
+    }
+
+    public double getSlowCallSampleRate() {
+        return slowCallSampleRate;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode())
@@ -87,6 +346,9 @@ public class MaximaConfiguration {
                 + ",maximaCommandArguments=" + maximaCommandArguments
                 + ",maximaRuntimeEnvironment=" + maximaRuntimeEnvironment
                 + ",defaultCallTimeout=" + defaultCallTimeout
+                + ",transport=" + transport
+                + ",poolSize=" + poolSize
+                + ",adaptiveTimeout=" + adaptiveTimeout
                 + ")";
     }
 
@@ -95,6 +357,37 @@ public class MaximaConfiguration {
         MaximaConfiguration config = new MaximaConfiguration();
         config.maximaExecutablePath = prop.getProperty(EXECUTABLE_KEY, "");
         config.defaultCallTimeout = Integer.parseInt(prop.getProperty(DEFAULT_TIMEOUT_KEY, "10"));
+        config.startupTimeout = Integer.parseInt(prop.getProperty(STARTUP_TIMEOUT_KEY, "0"));
+        config.transport = Transport.valueOf(prop.getProperty(TRANSPORT_KEY, Transport.PIPE.name()).trim().toUpperCase(Locale.ENGLISH));
+        config.transportPort = Integer.parseInt(prop.getProperty(TRANSPORT_PORT_KEY, "0"));
+        config.poolSize = Integer.parseInt(prop.getProperty(POOL_SIZE_KEY, "0"));
+        config.poolMinSize = Integer.parseInt(prop.getProperty(POOL_MIN_SIZE_KEY, "1"));
+        config.poolAutoscaleInterval = Long.parseLong(prop.getProperty(POOL_AUTOSCALE_INTERVAL_KEY,
+                String.valueOf(MaximaPoolAutoscaler.DEFAULT_INTERVAL)));
+        config.zygote = Boolean.parseBoolean(prop.getProperty(ZYGOTE_KEY, "false"));
+        config.pinCpus = Boolean.parseBoolean(prop.getProperty(PIN_CPUS_KEY, "false"));
+        config.resultCacheDir = prop.getProperty(RESULT_CACHE_DIR_KEY, "").trim();
+        config.resultCacheMaxBytes = Long.parseLong(prop.getProperty(RESULT_CACHE_MAX_BYTES_KEY,
+                String.valueOf(MaximaResultCache.DEFAULT_MAX_BYTES)));
+        config.fastPath = Boolean.parseBoolean(prop.getProperty(FAST_PATH_KEY, "false"));
+        config.adaptiveTimeout = Boolean.parseBoolean(prop.getProperty(ADAPTIVE_TIMEOUT_KEY, "false"));
+        config.adaptiveTimeoutPercentile = Double.parseDouble(prop.getProperty(ADAPTIVE_TIMEOUT_PERCENTILE_KEY,
+                String.valueOf(MaximaAdaptiveTimeout.DEFAULT_PERCENTILE)));
+        config.adaptiveTimeoutMultiplier = Double.parseDouble(prop.getProperty(ADAPTIVE_TIMEOUT_MULTIPLIER_KEY,
+                String.valueOf(MaximaAdaptiveTimeout.DEFAULT_MULTIPLIER)));
+        config.adaptiveTimeoutCap = Integer.parseInt(prop.getProperty(ADAPTIVE_TIMEOUT_CAP_KEY,
+                String.valueOf(MaximaAdaptiveTimeout.DEFAULT_HARD_CAP)));
+        config.launchRate = Double.parseDouble(prop.getProperty(LAUNCH_RATE_KEY,
+                String.valueOf(MaximaLaunchGuard.DEFAULT_LAUNCH_RATE)));
+        config.launchFailureThreshold = Integer.parseInt(prop.getProperty(LAUNCH_FAILURE_THRESHOLD_KEY,
+                String.valueOf(MaximaLaunchGuard.DEFAULT_FAILURE_THRESHOLD)));
+        config.launchInitialBackoff = Long.parseLong(prop.getProperty(LAUNCH_INITIAL_BACKOFF_KEY,
+                String.valueOf(MaximaLaunchGuard.DEFAULT_INITIAL_BACKOFF)));
+        config.launchMaxBackoff = Long.parseLong(prop.getProperty(LAUNCH_MAX_BACKOFF_KEY,
+                String.valueOf(MaximaLaunchGuard.DEFAULT_MAX_BACKOFF)));
+        config.slowCallThreshold = Long.parseLong(prop.getProperty(SLOW_CALL_THRESHOLD_KEY, "0"));
+        config.slowCallSampleRate = Double.parseDouble(prop.getProperty(SLOW_CALL_SAMPLE_RATE_KEY,
+                String.valueOf(MaximaSlowCallLog.DEFAULT_SAMPLE_RATE)));
         config.maximaCommandArguments = getIndexedProperty(prop, EXECUTABLE_ARGS_PREFIX_KEY);
         config.maximaRuntimeEnvironment = getEnvs(prop, EXECUTABLE_ENV_ARGS_PREFIX_KEY);
         return config;
@@ -0,0 +1,120 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Works out which CPUs Maxima processes can use, taking Linux cgroup CPU quotas and the
+ * CPU affinity of this JVM into account. (Older JVMs report all the host's CPUs from
+ * {@link Runtime#availableProcessors()}, even in a container limited to a few.)
+ *
+ * @author tengyt
+ */
+final class MaximaCpus {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaCpus.class);
+
+    private static final File CGROUP_V2_CPU_MAX = new File("/sys/fs/cgroup/cpu.max");
+    private static final File CGROUP_V1_QUOTA = new File("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+    private static final File CGROUP_V1_PERIOD = new File("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+    private static final File PROC_SELF_STATUS = new File("/proc/self/status");
+    private static final String CPUS_ALLOWED_PREFIX = "Cpus_allowed_list:";
+
+    private MaximaCpus() {
+    }
+
+    /**
+     * Returns the number of CPUs worth of time available to us: the number of CPUs we may
+     * run on, capped by the cgroup CPU quota (rounded up), if any.
+     */
+    static int availableCpus() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        final List<Integer> allowed = allowedCpus();
+        if (!allowed.isEmpty()) {
+            cpus = Math.min(cpus, allowed.size());
+        }
+        final double quota = cgroupQuota();
+        if (quota > 0) {
+            cpus = Math.min(cpus, (int) Math.ceil(quota));
+        }
+        return Math.max(1, cpus);
+    }
+
+    /**
+     * Returns the IDs of the CPUs this JVM may run on, or an empty list if they can't be
+     * determined (e.g. when not on Linux).
+     */
+    static List<Integer> allowedCpus() {
+        if (!PROC_SELF_STATUS.canRead()) {
+            return Lists.newArrayList();
+        }
+        try {
+            for (final String line : Files.asCharSource(PROC_SELF_STATUS, StandardCharsets.US_ASCII).readLines()) {
+                if (line.startsWith(CPUS_ALLOWED_PREFIX)) {
+                    return parseCpuList(line.substring(CPUS_ALLOWED_PREFIX.length()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Could not read allowed CPUs", e);
+        }
+        return Lists.newArrayList();
+    }
+
+    /**
+     * Returns the cgroup CPU quota as a number of CPUs, or 0 if there is none.
+     */
+    static double cgroupQuota() {
+        try {
+            if (CGROUP_V2_CPU_MAX.canRead()) {
+                return parseCpuMax(Files.asCharSource(CGROUP_V2_CPU_MAX, StandardCharsets.US_ASCII).read());
+            }
+            if (CGROUP_V1_QUOTA.canRead() && CGROUP_V1_PERIOD.canRead()) {
+                final long quota = Long.parseLong(Files.asCharSource(CGROUP_V1_QUOTA, StandardCharsets.US_ASCII).read().trim());
+                final long period = Long.parseLong(Files.asCharSource(CGROUP_V1_PERIOD, StandardCharsets.US_ASCII).read().trim());
+                return quota > 0 && period > 0 ? (double) quota / period : 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Could not read cgroup CPU quota", e);
+        }
+        return 0;
+    }
+
+    /**
+     * Parses the contents of a cgroup v2 <tt>cpu.max</tt> file, e.g. <tt>"150000 100000"</tt>
+     * or <tt>"max 100000"</tt>.
+     */
+    static double parseCpuMax(final String cpuMax) {
+        final String[] fields = cpuMax.trim().split("\\s+");
+        if (fields.length != 2 || "max".equals(fields[0])) {
+            return 0;
+        }
+        final long period = Long.parseLong(fields[1]);
+        return period > 0 ? (double) Long.parseLong(fields[0]) / period : 0;
+    }
+
+    /**
+     * Parses a Linux CPU list, e.g. <tt>"0-3,6,8-9"</tt>.
+     */
+    static List<Integer> parseCpuList(final String cpuList) {
+        final List<Integer> cpus = Lists.newArrayList();
+        for (final String range : cpuList.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            final int dash = range.indexOf('-');
+            final int first = Integer.parseInt(range.substring(0, dash < 0 ? range.length() : dash).trim());
+            final int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            for (int cpu = first; cpu <= last; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus;
+    }
+}
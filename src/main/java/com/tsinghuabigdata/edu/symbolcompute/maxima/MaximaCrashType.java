@@ -0,0 +1,79 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import java.util.Locale;
+
+/**
+ * Classification of a failed Maxima launch, as reported by {@link MaximaLaunchException}.
+ *
+ * @author tengyt
+ */
+public enum MaximaCrashType {
+
+    /**
+     * The executable could not be started at all (missing, not executable, ...)
+     */
+    MISSING_EXECUTABLE,
+
+    /**
+     * The Lisp runtime started but could not load the Maxima core or image
+     */
+    BAD_CORE,
+
+    /**
+     * The runtime could not get the memory it needed, or was killed by the OOM killer
+     */
+    OUT_OF_MEMORY,
+
+    /**
+     * The process was terminated by a signal
+     */
+    KILLED,
+
+    /**
+     * The process exited for another reason
+     */
+    CRASHED,
+
+    /**
+     * The process kept running but did not become ready in time
+     */
+    UNRESPONSIVE,
+
+    /**
+     * The launch was not attempted because launches are currently being throttled
+     */
+    RATE_LIMITED,
+
+    /**
+     * The launch was not attempted because recent launches failed and the circuit is open
+     */
+    CIRCUIT_OPEN;
+
+    /**
+     * Classifies a process that exited shortly after being launched, from its exit
+     * code and whatever it wrote to STDERR.
+     */
+    public static MaximaCrashType classify(final int exitCode, final String stderr) {
+        final String message = stderr != null ? stderr.toLowerCase(Locale.ENGLISH) : "";
+        if (message.contains("heap exhausted") || message.contains("out of memory")
+                || message.contains("cannot allocate memory") || message.contains("can't allocate")
+                || message.contains("mmap")) {
+            return OUT_OF_MEMORY;
+        }
+        if (message.contains("core") && (message.contains("can't find") || message.contains("cannot find")
+                || message.contains("not found") || message.contains("built for") || message.contains("corrupt"))) {
+            return BAD_CORE;
+        }
+        if (message.contains("no such file") || message.contains("permission denied")) {
+            return MISSING_EXECUTABLE;
+        }
+        if (exitCode == 137) {
+            /* (SIGKILL, which is what the Linux OOM killer sends) */
+            return OUT_OF_MEMORY;
+        }
+        if (exitCode > 128) {
+            return KILLED;
+        }
+        return CRASHED;
+    }
+}
@@ -0,0 +1,301 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks whether (candidate, reference) pairs of Maxima expressions are equivalent,
+ * e.g. a student's answer against the expected one.
+ * <p/>
+ * A whole batch of pairs is checked with a single Maxima call, which prints one verdict
+ * code per pair on a single line framed by a random nonce. Each pair goes through
+ * a ladder of {@link Strategy}s, cheapest first, until one of them reaches a verdict.
+ * Expressions are parsed with <tt>parse_string</tt> under <tt>errcatch</tt>, so a
+ * malformed or failing pair only yields {@link Verdict#ERROR} for itself. Only plain
+ * mathematical expressions (see {@link MaximaInputs#isSafeExpression(String)}) are sent
+ * to Maxima; anything else is refused.
+ * <p/>
+ * If a call times out or its output can't be parsed, the process is terminated, since
+ * it may still be working or have output left over that would confuse later calls.
+ * <p/>
+ * An instance of this class is immutable and thread-safe.
+ *
+ * @author tengyt
+ */
+public class MaximaEquivalenceChecker {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaEquivalenceChecker.class);
+
+    public enum Strategy {
+
+        /**
+         * <tt>is(a = b)</tt>: both sides simplify to the same expression
+         */
+        SYNTACTIC,
+
+        /**
+         * <tt>ratsimp(a - b) = 0</tt>. Only ever proves equivalence, since transcendental
+         * identities are not recognised by <tt>ratsimp</tt>.
+         */
+        RATSIMP,
+
+        /**
+         * <tt>is(equal(a, b))</tt>, which may decide either way
+         */
+        EQUAL,
+
+        /**
+         * Compares floating point values of both sides at a number of fixed sample points.
+         * This is a heuristic: a difference at any point proves non-equivalence, while
+         * agreement at most points is taken as equivalence.
+         */
+        NUMERIC
+    }
+
+    public enum Verdict {
+        EQUIVALENT,
+        NOT_EQUIVALENT,
+
+        /**
+         * None of the strategies reached a verdict
+         */
+        UNDECIDED,
+
+        /**
+         * The pair could not be checked, e.g. because an expression did not parse, its
+         * evaluation failed or the call timed out
+         */
+        ERROR
+    }
+
+    public static final List<Strategy> DEFAULT_STRATEGIES = ImmutableList.of(Strategy.SYNTACTIC, Strategy.RATSIMP,
+            Strategy.EQUAL, Strategy.NUMERIC);
+    public static final int DEFAULT_SAMPLE_COUNT = 8;
+    public static final double DEFAULT_TOLERANCE = 1.0e-9;
+
+    /**
+     * Maximum number of pairs sent in a single Maxima call
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * Number of distinct values in the table sample points are drawn from
+     */
+    private static final int SAMPLE_TABLE_SIZE = 61;
+
+    private static final String SAMPLE_TABLE = buildSampleTable();
+
+    private final List<Strategy> strategies;
+    private final int sampleCount;
+    private final double tolerance;
+    private final int batchSize;
+
+    /**
+     * Maxima source for the lambda applying the strategy ladder to one pair, fixed for this instance
+     */
+    private final String ladderLambda;
+
+    public MaximaEquivalenceChecker() {
+        this(DEFAULT_STRATEGIES, DEFAULT_SAMPLE_COUNT, DEFAULT_TOLERANCE, DEFAULT_BATCH_SIZE);
+    }
+
+    public MaximaEquivalenceChecker(final List<Strategy> strategies) {
+        this(strategies, DEFAULT_SAMPLE_COUNT, DEFAULT_TOLERANCE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param strategies  strategies to try on each pair, in order
+     * @param sampleCount number of sample points used by {@link Strategy#NUMERIC}
+     * @param tolerance   relative tolerance used by {@link Strategy#NUMERIC}
+     * @param batchSize   maximum number of pairs sent in a single Maxima call
+     */
+    public MaximaEquivalenceChecker(final List<Strategy> strategies, final int sampleCount, final double tolerance,
+                                    final int batchSize) {
+        Preconditions.checkArgument(strategies != null && !strategies.isEmpty(), "strategies must not be empty");
+        Preconditions.checkArgument(sampleCount > 0, "sampleCount must be positive");
+        Preconditions.checkArgument(tolerance > 0, "tolerance must be positive");
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        this.strategies = ImmutableList.copyOf(strategies);
+        this.sampleCount = sampleCount;
+        this.tolerance = tolerance;
+        this.batchSize = batchSize;
+        this.ladderLambda = buildLadderLambda();
+    }
+
+    public List<Strategy> getStrategies() {
+        return strategies;
+    }
+
+    /**
+     * Checks a single pair. Prefer {@link #checkAll(MaximaInteractiveProcess, List, List, int)}
+     * when there are several.
+     */
+    public Verdict check(final MaximaInteractiveProcess process, final String candidate, final String reference,
+                         final int callTimeout) {
+        return checkAll(process, Collections.singletonList(candidate), Collections.singletonList(reference), callTimeout).get(0);
+    }
+
+    /**
+     * Checks each candidate against the reference at the same index, using one Maxima
+     * call per batch of pairs. If a call fails, the process is terminated and the pairs
+     * not checked yet get {@link Verdict#ERROR}.
+     *
+     * @param callTimeout timeout for each Maxima call
+     * @return verdicts, in the same order as the pairs
+     */
+    public List<Verdict> checkAll(final MaximaInteractiveProcess process, final List<String> candidates,
+                                  final List<String> references, final int callTimeout) {
+        Preconditions.checkNotNull(process, "process");
+        Preconditions.checkArgument(candidates.size() == references.size(),
+                "got %s candidates but %s references", candidates.size(), references.size());
+        final Verdict[] verdicts = new Verdict[candidates.size()];
+        final List<Integer> pending = Lists.newArrayList();
+        for (int i = 0; i < verdicts.length; i++) {
+            if (isCheckable(candidates.get(i)) && isCheckable(references.get(i))) {
+                pending.add(i);
+            } else {
+                LOG.debug("Refusing to check pair {}: {} / {}", i, candidates.get(i), references.get(i));
+                verdicts[i] = Verdict.ERROR;
+            }
+        }
+        for (final List<Integer> batch : Lists.partition(pending, batchSize)) {
+            final String nonce = MaximaInputs.newNonce();
+            final String output = process.executeCall(buildCall(candidates, references, batch, nonce), callTimeout);
+            final Verdict[] batchVerdicts = parseVerdicts(output, nonce, batch.size());
+            if (batchVerdicts == null) {
+                LOG.warn("Unexpected output from equivalence check of {} pairs, terminating the process: {}",
+                        batch.size(), output);
+                process.terminate();
+                for (final int index : pending.subList(pending.indexOf(batch.get(0)), pending.size())) {
+                    verdicts[index] = Verdict.ERROR;
+                }
+                break;
+            }
+            for (int i = 0; i < batchVerdicts.length; i++) {
+                verdicts[batch.get(i)] = batchVerdicts[i];
+            }
+        }
+        return Arrays.asList(verdicts);
+    }
+
+    private static boolean isCheckable(final String expression) {
+        return expression != null && !expression.trim().isEmpty() && MaximaInputs.isSafeExpression(expression);
+    }
+
+    /**
+     * Builds the single Maxima call checking the given pairs, which prints a string with
+     * one verdict code per pair using {@link MaximaInputs#printFramed(String, String)}.
+     */
+    String buildCall(final List<String> candidates, final List<String> references, final List<Integer> indices,
+                     final String nonce) {
+        final StringBuilder codes = new StringBuilder(indices.size() * 32);
+        codes.append("simplode(map(lambda([%eq_s],block([%eq_x:errcatch(apply(%eq_f,")
+                .append("map(lambda([%eq_t],ev(parse_string(%eq_t))),%eq_s)))],")
+                .append("if %eq_x=[] then \"X\" else first(%eq_x))),[");
+        for (int i = 0; i < indices.size(); i++) {
+            final int index = indices.get(i);
+            if (i > 0) {
+                codes.append(',');
+            }
+            codes.append('[').append(MaximaInputs.quoteString(candidates.get(index))).append(',')
+                    .append(MaximaInputs.quoteString(references.get(index))).append(']');
+        }
+        codes.append("]))");
+        return "block([errormsg:false,ratprint:false,prederror:false,%eq_p:" + SAMPLE_TABLE + ",%eq_f:" + ladderLambda
+                + "]," + MaximaInputs.printFramed(codes.toString(), nonce) + ")$";
+    }
+
+    /**
+     * Parses the output of a call made by {@link #buildCall(List, List, List, String)}.
+     *
+     * @return the verdicts, or null if the output does not have the expected shape (e.g.
+     * after a timeout, or when it is left over from an earlier call)
+     */
+    static Verdict[] parseVerdicts(final String output, final String nonce, final int count) {
+        final String codes = MaximaInputs.unframe(output, nonce);
+        if (codes == null || codes.length() != count) {
+            return null;
+        }
+        final Verdict[] verdicts = new Verdict[count];
+        for (int i = 0; i < count; i++) {
+            switch (codes.charAt(i)) {
+                case 'E':
+                    verdicts[i] = Verdict.EQUIVALENT;
+                    break;
+                case 'N':
+                    verdicts[i] = Verdict.NOT_EQUIVALENT;
+                    break;
+                case 'U':
+                    verdicts[i] = Verdict.UNDECIDED;
+                    break;
+                default:
+                    verdicts[i] = Verdict.ERROR;
+                    break;
+            }
+        }
+        return verdicts;
+    }
+
+    /**
+     * Builds a lambda taking the evaluated candidate and reference and returning a verdict
+     * code, by nesting the strategies from last to first.
+     */
+    private String buildLadderLambda() {
+        String ladder = "\"U\"";
+        for (final Strategy strategy : Lists.reverse(strategies)) {
+            switch (strategy) {
+                case SYNTACTIC:
+                    ladder = "if is(%eq_c=%eq_r) then \"E\" else " + ladder;
+                    break;
+                case RATSIMP:
+                    ladder = "if is(ratsimp(%eq_c-%eq_r)=0) then \"E\" else " + ladder;
+                    break;
+                case EQUAL:
+                    ladder = "block([%eq_e:is(equal(%eq_c,%eq_r))],"
+                            + "if %eq_e=true then \"E\" elseif %eq_e=false then \"N\" else " + ladder + ")";
+                    break;
+                case NUMERIC:
+                    ladder = "block([%eq_v:listofvars([%eq_c,%eq_r]),%eq_n:0,%eq_d:false],"
+                            + "for %eq_i thru " + sampleCount + " do "
+                            + "block([%eq_y:errcatch(float(subst(makelist(%eq_v[%eq_j]=%eq_p[mod(%eq_i*7+%eq_j*3,"
+                            + SAMPLE_TABLE_SIZE + ")+1],%eq_j,1,length(%eq_v)),[%eq_c,%eq_r])))],"
+                            + "if %eq_y#[] and numberp(first(%eq_y)[1]) and numberp(first(%eq_y)[2]) then "
+                            + "(%eq_n:%eq_n+1,if abs(first(%eq_y)[1]-first(%eq_y)[2])>"
+                            + BigDecimal.valueOf(tolerance).toPlainString() + "*max(1,abs(first(%eq_y)[2])) then %eq_d:true)),"
+                            + "if %eq_d then \"N\" elseif 2*%eq_n>" + sampleCount + " then \"E\" else " + ladder + ")";
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected strategy " + strategy);
+            }
+        }
+        return "lambda([%eq_c,%eq_r]," + ladder + ")";
+    }
+
+    /**
+     * Fixed, reproducible sample values (avoiding simple numbers like 0 and 1 where
+     * inequivalent expressions are more likely to coincide), so that checks don't touch
+     * Maxima's random state.
+     */
+    private static String buildSampleTable() {
+        final Random random = new Random(SAMPLE_TABLE_SIZE);
+        final StringBuilder table = new StringBuilder("[");
+        for (int i = 0; i < SAMPLE_TABLE_SIZE; i++) {
+            if (i > 0) {
+                table.append(',');
+            }
+            final double value = (random.nextBoolean() ? 1 : -1) * (0.1 + 3.0 * random.nextDouble());
+            table.append(String.format(Locale.ENGLISH, "%.6f", value));
+        }
+        return table.append(']').toString();
+    }
+}
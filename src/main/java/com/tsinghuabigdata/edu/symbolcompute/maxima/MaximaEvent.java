@@ -0,0 +1,137 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Something that happened to a Maxima process, as reported to {@link MaximaEventListener}s.
+ * <p/>
+ * Instances of this class are immutable.
+ *
+ * @author tengyt
+ */
+public final class MaximaEvent {
+
+    public enum Type {
+
+        /**
+         * A call is about to be sent to Maxima
+         */
+        CALL_STARTED,
+
+        /**
+         * A call completed normally
+         */
+        CALL_FINISHED,
+
+        /**
+         * A call did not finish within its timeout
+         */
+        CALL_TIMED_OUT,
+
+        /**
+         * A call failed and its process was terminated
+         */
+        CALL_FAILED,
+
+        /**
+         * A process was launched and became ready
+         */
+        LAUNCHED,
+
+        /**
+         * A process was soft reset
+         */
+        RESET,
+
+        /**
+         * A process exited after its input was closed
+         */
+        TERMINATED,
+
+        /**
+         * A process did not exit after its input was closed and had to be destroyed
+         */
+        KILLED
+    }
+
+    private final Type type;
+    private final String input;
+    private final long durationNanos;
+    private final int outputLength;
+    private final int exitValue;
+    private final long timestamp;
+
+    /**
+     * @param input         call input, or null for events not about a call
+     * @param durationNanos duration of the call, launch or reset, or 0 if not applicable
+     * @param outputLength  length of the call output, or -1 if not applicable
+     * @param exitValue     value returned by {@link MaximaInteractiveProcess#terminate()}, or 0 if not applicable
+     */
+    MaximaEvent(final Type type, final String input, final long durationNanos, final int outputLength, final int exitValue) {
+        this.type = type;
+        this.input = input;
+        this.durationNanos = durationNanos;
+        this.outputLength = outputLength;
+        this.exitValue = exitValue;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the call input, or null for events not about a call. Keep in mind that this
+     * may be large, and may contain user data.
+     */
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * Returns a (non-cryptographic) hash of the call input, allowing events for the same
+     * input to be correlated without keeping the input itself.
+     */
+    public int getInputHash() {
+        return input != null ? input.hashCode() : 0;
+    }
+
+    public int getInputLength() {
+        return input != null ? input.length() : 0;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public long getDuration(final TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * Returns the wall clock time this event was created at, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "MaximaEvent{" +
+                "type=" + type +
+                ", inputHash=" + getInputHash() +
+                ", inputLength=" + getInputLength() +
+                ", durationNanos=" + durationNanos +
+                ", outputLength=" + outputLength +
+                ", exitValue=" + exitValue +
+                '}';
+    }
+}
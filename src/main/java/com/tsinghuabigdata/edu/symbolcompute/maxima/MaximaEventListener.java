@@ -0,0 +1,15 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+/**
+ * Receives {@link MaximaEvent}s from the processes of a {@link MaximaProcessLauncher},
+ * e.g. to feed them into a monitoring or recording system.
+ * <p/>
+ * Listeners are called synchronously on the thread making the call (or launching,
+ * resetting or terminating the process), so they must be quick and must not throw.
+ *
+ * @author tengyt
+ */
+public interface MaximaEventListener {
+
+    void onEvent(MaximaEvent event);
+}
@@ -0,0 +1,272 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import java.math.BigInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates trivial Maxima inputs in the JVM, saving a round trip to the Maxima process.
+ * <p/>
+ * Only a conservative subset of Maxima syntax is recognised: a single statement terminated
+ * by <tt>;</tt> made of integer literals, parentheses, <tt>+ - * /</tt>, <tt>^</tt> (or
+ * <tt>**</tt>) and <tt>!</tt>, with the same precedence as in Maxima. It is evaluated with
+ * exact rational arithmetic and printed as Maxima prints rational numbers with
+ * <tt>display2d:false</tt>, e.g. <tt>-7/2</tt>. Anything else, including floats,
+ * non-integer powers, division by zero, huge numbers and results too long for one output
+ * line, is left to Maxima.
+ * <p/>
+ * The results are only right for a process with <tt>display2d:false</tt> and the default
+ * values of the other option variables affecting arithmetic (<tt>simp</tt>, <tt>numer</tt>,
+ * <tt>ibase</tt> and so on), and inputs evaluated here get no output labels in Maxima; see
+ * {@link #mayAffectResults(String)}.
+ *
+ * @author tengyt
+ */
+final class MaximaFastPath {
+
+    /**
+     * Longest output returned; Maxima splits longer lines, depending on <tt>linel</tt>
+     */
+    static final int MAX_OUTPUT_LENGTH = 70;
+
+    /**
+     * Largest size (in bits) of any numerator or denominator computed along the way
+     */
+    private static final int MAX_BITS = 4096;
+
+    /**
+     * Largest argument of <tt>!</tt> evaluated here
+     */
+    private static final int MAX_FACTORIAL = 300;
+
+    /**
+     * Option variables changing how Maxima evaluates or prints arithmetic, and functions
+     * resetting them (<tt>reset()</tt> restores <tt>display2d:true</tt>)
+     */
+    private static final Pattern ARITHMETIC_OPTIONS = Pattern.compile(
+            "\\b(?:simp|numer|float|ibase|obase|display2d|linel|stardisp|powerdisp|factlim|ev|reset|kill)\\b");
+
+    /**
+     * References to earlier inputs or outputs: <tt>%</tt>, <tt>%o1</tt>, <tt>%i1</tt> and
+     * <tt>%th(1)</tt> (but not <tt>%%</tt> or constants like <tt>%pi</tt>)
+     */
+    private static final Pattern HISTORY = Pattern.compile(
+            "(?<![%\\w])%(?:(?![%\\w])|[oi][0-9]+\\b|th\\s*\\()");
+
+    /**
+     * Option settings which the results of {@link #evaluate(String)} are compatible with
+     */
+    private static final Pattern COMPATIBLE_OPTION = Pattern.compile(
+            "\\s*(?:display2d\\s*:\\s*false|linel\\s*:\\s*(?:[7-9][0-9]|[1-9][0-9]{2,}))\\s*");
+
+    private final String input;
+    private int position;
+
+    private MaximaFastPath(final String input) {
+        this.input = input;
+    }
+
+    /**
+     * Evaluates the given input if it is simple enough.
+     *
+     * @return Maxima's <tt>display2d:false</tt> output for the input, or null if it must be
+     * evaluated by Maxima
+     */
+    static String evaluate(final String maximaInput) {
+        final String trimmed = maximaInput.trim();
+        if (!trimmed.endsWith(";") || trimmed.contains("!!")) {
+            return null;
+        }
+        final MaximaFastPath parser = new MaximaFastPath(trimmed.substring(0, trimmed.length() - 1));
+        final BigInteger[] value = parser.parseSum();
+        if (value == null || parser.skipSpaces() < parser.input.length()) {
+            return null;
+        }
+        final String output = value[1].equals(BigInteger.ONE) ? value[0].toString() : value[0] + "/" + value[1];
+        return output.length() <= MAX_OUTPUT_LENGTH ? output : null;
+    }
+
+    /**
+     * Returns whether the given input may change option variables that the results of
+     * {@link #evaluate(String)} rely on (judged conservatively, by name), or refers to
+     * earlier outputs, which are wrong or missing for inputs evaluated here.
+     */
+    static boolean mayAffectResults(final String maximaInput) {
+        if (HISTORY.matcher(maximaInput).find()) {
+            return true;
+        }
+        for (final String statement : maximaInput.split("[;$]")) {
+            if (!COMPATIBLE_OPTION.matcher(statement).matches() && ARITHMETIC_OPTIONS.matcher(statement).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* The parse methods return the value as {numerator, denominator} with a positive
+     * denominator and no common factors, or null if the input is not handled here. */
+
+    private BigInteger[] parseSum() {
+        BigInteger[] result = parseProduct();
+        while (result != null) {
+            final char operator = peek();
+            if (operator != '+' && operator != '-') {
+                break;
+            }
+            position++;
+            final BigInteger[] operand = parseProduct();
+            if (operand == null) {
+                return null;
+            }
+            final BigInteger product = operand[0].multiply(result[1]);
+            result = rational(result[0].multiply(operand[1]).add(operator == '+' ? product : product.negate()),
+                    result[1].multiply(operand[1]));
+        }
+        return result;
+    }
+
+    private BigInteger[] parseProduct() {
+        BigInteger[] result = parseUnary();
+        while (result != null) {
+            final char operator = peek();
+            if ((operator != '*' && operator != '/') || input.startsWith("**", position)) {
+                break;
+            }
+            position++;
+            final BigInteger[] operand = parseUnary();
+            if (operand == null) {
+                return null;
+            }
+            result = operator == '*'
+                    ? rational(result[0].multiply(operand[0]), result[1].multiply(operand[1]))
+                    : rational(result[0].multiply(operand[1]), result[1].multiply(operand[0]));
+        }
+        return result;
+    }
+
+    /**
+     * Parses a unary sign, which binds less tightly than <tt>^</tt> (so <tt>-2^2</tt> is -4)
+     * but more tightly than <tt>*</tt>, also in exponents (so <tt>2^-1*4</tt> is 2).
+     */
+    private BigInteger[] parseUnary() {
+        final char sign = peek();
+        if (sign == '+' || sign == '-') {
+            position++;
+            final BigInteger[] operand = parseUnary();
+            return operand == null || sign == '+' ? operand : new BigInteger[]{operand[0].negate(), operand[1]};
+        }
+        return parsePower();
+    }
+
+    /**
+     * Parses a right-associative power, whose exponent may itself carry a sign.
+     */
+    private BigInteger[] parsePower() {
+        final BigInteger[] base = parseFactorial();
+        if (base == null) {
+            return null;
+        }
+        final char operator = peek();
+        if (operator == '^' || input.startsWith("**", position)) {
+            position += operator == '^' ? 1 : 2;
+            final BigInteger[] exponent = parseUnary();
+            return exponent == null ? null : power(base, exponent);
+        }
+        return base;
+    }
+
+    private BigInteger[] parseFactorial() {
+        BigInteger[] result = parseAtom();
+        while (result != null && peek() == '!') {
+            position++;
+            if (!result[1].equals(BigInteger.ONE) || result[0].signum() < 0
+                    || result[0].compareTo(BigInteger.valueOf(MAX_FACTORIAL)) > 0) {
+                return null;
+            }
+            BigInteger factorial = BigInteger.ONE;
+            for (int i = 2; i <= result[0].intValue(); i++) {
+                factorial = factorial.multiply(BigInteger.valueOf(i));
+            }
+            result = new BigInteger[]{factorial, BigInteger.ONE};
+        }
+        return result;
+    }
+
+    private BigInteger[] parseAtom() {
+        final char c = peek();
+        if (c == '(') {
+            position++;
+            final BigInteger[] result = parseSum();
+            if (result == null || peek() != ')') {
+                return null;
+            }
+            position++;
+            return result;
+        }
+        final int start = position;
+        while (position < input.length() && input.charAt(position) >= '0' && input.charAt(position) <= '9') {
+            position++;
+        }
+        if (position == start || position - start > MAX_OUTPUT_LENGTH) {
+            return null;
+        }
+        if (position < input.length()) {
+            /* Floats (1.5, 1e3, 1b0) and things like 2x are left to Maxima */
+            final char next = input.charAt(position);
+            if (next == '.' || next == '_' || next == '%' || Character.isLetterOrDigit(next)) {
+                return null;
+            }
+        }
+        return new BigInteger[]{new BigInteger(input.substring(start, position)), BigInteger.ONE};
+    }
+
+    /**
+     * Raises a rational number to an integer power, returning null for anything else and for
+     * <tt>0^0</tt> and negative powers of 0, which are errors in Maxima.
+     */
+    private static BigInteger[] power(final BigInteger[] base, final BigInteger[] exponent) {
+        if (!exponent[1].equals(BigInteger.ONE) || (base[0].signum() == 0 && exponent[0].signum() <= 0)) {
+            return null;
+        }
+        final int bits = Math.max(base[0].bitLength(), base[1].bitLength());
+        if (exponent[0].bitLength() > 31 || (long) bits * exponent[0].abs().intValue() > MAX_BITS) {
+            /* (Powers of 0, 1 and -1 never get big) */
+            return bits <= 1 && base[1].equals(BigInteger.ONE) ? power(base, exponent[0].testBit(0) ? 1 : 2) : null;
+        }
+        return power(base, exponent[0].intValue());
+    }
+
+    private static BigInteger[] power(final BigInteger[] base, final int exponent) {
+        final BigInteger numerator = base[0].pow(Math.abs(exponent));
+        final BigInteger denominator = base[1].pow(Math.abs(exponent));
+        return exponent >= 0 ? new BigInteger[]{numerator, denominator} : rational(denominator, numerator);
+    }
+
+    /**
+     * Returns the given fraction in lowest terms, or null after a division by zero or when
+     * the result gets too big.
+     */
+    private static BigInteger[] rational(final BigInteger numerator, final BigInteger denominator) {
+        if (denominator.signum() == 0 || numerator.bitLength() > MAX_BITS || denominator.bitLength() > MAX_BITS) {
+            return null;
+        }
+        BigInteger gcd = numerator.gcd(denominator);
+        if (denominator.signum() < 0) {
+            gcd = gcd.negate();
+        }
+        return new BigInteger[]{numerator.divide(gcd), denominator.divide(gcd)};
+    }
+
+    /**
+     * Skips whitespace and returns the next character, or 0 at the end of the input.
+     */
+    private char peek() {
+        return skipSpaces() < input.length() ? input.charAt(position) : 0;
+    }
+
+    private int skipSpaces() {
+        while (position < input.length() && Character.isWhitespace(input.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
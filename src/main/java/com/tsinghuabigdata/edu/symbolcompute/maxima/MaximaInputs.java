@@ -0,0 +1,201 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Conservative classification of Maxima call inputs, and helpers for building calls.
+ *
+ * @author tengyt
+ */
+final class MaximaInputs {
+
+    /**
+     * Assignments, definitions and calls to functions known to change the global state
+     * of a Maxima process. (This errs on the side of false positives: a <tt>:</tt> inside
+     * a string literal also matches.)
+     */
+    private static final Pattern STATE_CHANGING = Pattern.compile(
+            ":|\\b(?:define|load|batchload|batch|declare|assume|forget|kill|remvalue|remfunction|depends|gradef"
+                    + "|matchdeclare|tellsimp|tellsimpafter|defrule|let|alias|infix|prefix|postfix|nofix|matchfix"
+                    + "|nary|array|reset|set_random_state)\\s*\\(");
+
+    /**
+     * Calls to functions whose results depend on something other than their arguments
+     * (time, randomness, files, the environment)
+     */
+    private static final Pattern NON_DETERMINISTIC = Pattern.compile(
+            "\\b(?:random|make_random_state|elapsed_real_time|elapsed_run_time|absolute_real_time|timedate"
+                    + "|read|readline|openr|opena|openw|system|getenv|file_search|printfile)\\s*\\(");
+
+    /**
+     * Functions allowed by {@link #isSafeExpression(String)}: mathematical functions that
+     * can't reach the file system, the operating system or Maxima's evaluator
+     */
+    private static final Set<String> SAFE_FUNCTIONS = ImmutableSet.of(
+            "sin", "cos", "tan", "cot", "sec", "csc", "asin", "acos", "atan", "atan2", "acot", "asec", "acsc",
+            "sinh", "cosh", "tanh", "coth", "sech", "csch", "asinh", "acosh", "atanh", "acoth", "asech", "acsch",
+            "exp", "log", "sqrt", "abs", "signum", "floor", "ceiling", "round", "truncate", "max", "min", "mod",
+            "binomial", "factorial", "gamma", "beta", "erf", "conjugate", "realpart", "imagpart", "cabs", "carg",
+            "num", "denom", "gcd", "expand", "factor", "ratsimp", "radcan", "trigsimp", "trigexpand", "trigreduce",
+            "logcontract", "rectform", "polarform", "float", "diff", "integrate", "sum", "product", "limit",
+            "taylor", "subst", "at", "matrix", "transpose", "determinant", "invert");
+
+    /**
+     * Syntax never needed in a plain expression: Lisp calls, assignments, statement
+     * terminators, escaped identifiers and quote-quote (which evaluates while parsing)
+     */
+    private static final Pattern UNSAFE_SYNTAX = Pattern.compile("[?:;$\\\\]|''");
+
+    /**
+     * An opening parenthesis preceded by an identifier (group 1), or by anything else that
+     * would make it a call, e.g. <tt>"system"(...)</tt> or <tt>f[1](...)</tt>
+     */
+    private static final Pattern CALL = Pattern.compile("(?:([%\\w]+)|[)\\]\"])\\s*\\(");
+
+    /**
+     * A number (skipped, as e.g. <tt>1e10</tt> contains a letter) or an identifier (group 1),
+     * followed by an opening parenthesis (group 2) if it is called
+     */
+    private static final Pattern TOKEN = Pattern.compile(
+            "[0-9]+(?:\\.[0-9]*)?(?:[eEbBdD][-+]?[0-9]+)?|\\.[0-9]+|([%A-Za-z_][%\\w]*)(\\s*\\()?");
+
+    /**
+     * Identifiers allowed by {@link #isCacheable(String)} other than calls: constants and
+     * operators whose meaning can't be changed by assigning them
+     */
+    private static final Set<String> CONSTANTS = ImmutableSet.of(
+            "%pi", "%e", "%i", "%phi", "%gamma", "inf", "minf", "infinity", "und", "ind", "true", "false",
+            "and", "or", "not");
+
+    /**
+     * A statement assigning a literal value to a variable, e.g. <tt>display2d:false</tt>
+     */
+    private static final Pattern LITERAL_ASSIGNMENT = Pattern.compile(
+            "\\s*[%A-Za-z_][%\\w]*\\s*:\\s*(?:-?[0-9]+(?:\\.[0-9]*)?(?:[eEbBdD][-+]?[0-9]+)?|true|false)\\s*");
+
+    private MaximaInputs() {
+    }
+
+    /**
+     * Returns whether evaluating the given input may leave behind definitions or option
+     * settings that affect later calls on the same process.
+     */
+    static boolean isStateChanging(final String maximaInput) {
+        return STATE_CHANGING.matcher(maximaInput).find();
+    }
+
+    /**
+     * Returns whether the given Maxima expression only calls functions known to be safe,
+     * so that it may be evaluated on behalf of untrusted users. (This errs on the side of
+     * false negatives: e.g. a call inside a string literal is also checked.)
+     */
+    static boolean isSafeExpression(final String expression) {
+        if (UNSAFE_SYNTAX.matcher(expression).find()) {
+            return false;
+        }
+        final Matcher call = CALL.matcher(expression);
+        while (call.find()) {
+            if (call.group(1) == null || !SAFE_FUNCTIONS.contains(call.group(1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the given input looks like a single pure, deterministic statement,
+     * whose output may therefore be reused for later identical calls (provided the state
+     * of the process is not changed in the meantime). Besides numbers it may only contain
+     * calls to the functions allowed by {@link #isSafeExpression(String)} and a few
+     * constants: no symbols that might have values, and no references to earlier results
+     * such as <tt>%</tt>, <tt>%o1</tt> or <tt>%th(1)</tt>.
+     */
+    static boolean isCacheable(final String maximaInput) {
+        final String trimmed = maximaInput.trim();
+        if (!trimmed.endsWith(";") || trimmed.indexOf(';') != trimmed.length() - 1 || trimmed.indexOf('$') >= 0
+                || trimmed.indexOf('?') >= 0 || trimmed.indexOf('"') >= 0 || trimmed.startsWith(":lisp")
+                || isStateChanging(trimmed) || NON_DETERMINISTIC.matcher(trimmed).find()) {
+            return false;
+        }
+        final Matcher token = TOKEN.matcher(trimmed);
+        while (token.find()) {
+            final String identifier = token.group(1);
+            if (identifier != null && !(token.group(2) != null ? SAFE_FUNCTIONS : CONSTANTS).contains(identifier)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the given input only assigns literal values (numbers, <tt>true</tt> or
+     * <tt>false</tt>) to variables, as in <tt>display2d:false$ fpprec:30$</tt>. Such an
+     * input can't fail part way or depend on the state of the process, so its effect is
+     * known exactly from its text.
+     */
+    static boolean isLiteralAssignment(final String maximaInput) {
+        final String trimmed = maximaInput.trim();
+        if (!trimmed.endsWith(";") && !trimmed.endsWith("$")) {
+            return false;
+        }
+        for (final String statement : trimmed.substring(0, trimmed.length() - 1).split("[;$]", -1)) {
+            if (!LITERAL_ASSIGNMENT.matcher(statement).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a random token for {@link #printFramed(String, String)}.
+     */
+    static String newNonce() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns Maxima source printing the value of the given string-valued expression as
+     * <tt>nonce/value/nonce</tt>. This is printed with <tt>printf</tt> rather than
+     * displayed, as display breaks lines longer than <tt>linel</tt>, and should be used in
+     * a call terminated by <tt>$</tt>.
+     */
+    static String printFramed(final String stringExpression, final String nonce) {
+        return "printf(true,\"" + nonce + "/~a/" + nonce + "~%\"," + stringExpression + ")";
+    }
+
+    /**
+     * Extracts the value printed by {@link #printFramed(String, String)} from a call's output.
+     *
+     * @return the value, or null if the output does not contain it (e.g. after a timeout,
+     * or when the output is left over from an earlier call)
+     */
+    static String unframe(final String output, final String nonce) {
+        if (output == null) {
+            return null;
+        }
+        /* (Anything before the nonce would be an input prompt) */
+        final int start = output.indexOf(nonce + "/");
+        final int end = output.lastIndexOf("/" + nonce);
+        return start >= 0 && end >= start + nonce.length() + 1 ? output.substring(start + nonce.length() + 1, end) : null;
+    }
+
+    /**
+     * Returns Maxima source for a string literal with the given value.
+     */
+    static String quoteString(final String value) {
+        final StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\');
+            }
+            result.append(c);
+        }
+        return result.append('"').toString();
+    }
+}
@@ -25,6 +25,7 @@ public interface MaximaInteractiveProcess {
 
     int PROCESS_ALREADY_TERMINATED = -1;
     int PROCESS_FORCIBLY_DESTROYED = -2;
+    int PROCESS_DETACHED = -3;
 
     /**
      * Executes the given Maxima code, waiting for Maxima to finish evaluating
@@ -87,6 +88,16 @@ public interface MaximaInteractiveProcess {
      */
     boolean isTerminated();
 
+    /**
+     * Returns whether the last call made to the Maxima process did not finish within its
+     * timeout. The process may then still be busy with it, and its late output would be
+     * read by the next call, so such a process should be terminated rather than handed
+     * on to other work.
+     *
+     * @return true if the last call timed out, false otherwise.
+     */
+    boolean lastCallTimedOut();
+
     /**
      * Terminates the underlying Maxima process, forcibly if required. No
      * more calls can be made to this process after this point.
@@ -94,8 +105,9 @@ public interface MaximaInteractiveProcess {
      * Calling this on a process that has already terminated will do nothing.
      *
      * @return underlying exit value from the Maxima process, {@link #PROCESS_ALREADY_TERMINATED}
-     * if the process was already terminated, or {@link #PROCESS_FORCIBLY_DESTROYED}
-     * if the process had to be forcibly destroyed.
+     * if the process was already terminated, {@link #PROCESS_FORCIBLY_DESTROYED}
+     * if the process had to be forcibly destroyed, or {@link #PROCESS_DETACHED} if the
+     * process was attached over a socket and its exit value is unknown.
      */
     int terminate();
 
@@ -12,15 +12,75 @@ import org.apache.logging.log4j.Logger;
 public class MaximaInteractiveProcessImpl implements MaximaInteractiveProcess {
     private static final Logger LOG = LogFactory.getLogger(MaximaInteractiveProcessImpl.class);
 
+    private static final String RESET_INPUT = "[kill(all),reset()]$";
+
+    /**
+     * Longest {@link #assignments} kept before caching is switched off
+     */
+    private static final int MAX_ASSIGNMENTS_LENGTH = 4096;
+
     private final MaximaProcessController maximaProcessController;
     private int defaultCallTimeout;
 
+    /**
+     * Shared latency statistics used to pick default timeouts (may be null)
+     */
+    private final MaximaAdaptiveTimeout adaptiveTimeout;
+
+    /**
+     * Persistent cache of the results of pure calls (may be null)
+     */
+    private final MaximaResultCache resultCache;
+
+    /**
+     * Whether results are looked up in and added to {@link #resultCache}. This is switched
+     * off for good once a call has timed out, as its output may still turn up in a later
+     * call, or may have changed state in a way not recorded in {@link #assignments}.
+     */
+    private boolean caching = true;
+
+    /**
+     * Literal assignments made by earlier calls (see {@link MaximaInputs#isLiteralAssignment(String)}),
+     * in order. They determine the option state of the process, so they are part of the
+     * cache key.
+     */
+    private final StringBuilder assignments = new StringBuilder();
+
+    /**
+     * Whether trivial calls are evaluated by {@link MaximaFastPath} instead of Maxima. This
+     * is switched off for good once a call may have changed the options it relies on
+     * (soft resets included) or refers to earlier outputs, see {@link MaximaFastPath#mayAffectResults(String)}.
+     */
+    private boolean fastPath;
+
     public MaximaInteractiveProcessImpl(final MaximaProcessController maximaProcessController, final int defaultCallTimeout) {
+        this(maximaProcessController, defaultCallTimeout, null);
+    }
+
+    public MaximaInteractiveProcessImpl(final MaximaProcessController maximaProcessController, final int defaultCallTimeout,
+                                        final MaximaAdaptiveTimeout adaptiveTimeout) {
+        this(maximaProcessController, defaultCallTimeout, adaptiveTimeout, null);
+    }
+
+    public MaximaInteractiveProcessImpl(final MaximaProcessController maximaProcessController, final int defaultCallTimeout,
+                                        final MaximaAdaptiveTimeout adaptiveTimeout, final MaximaResultCache resultCache) {
+        this(maximaProcessController, defaultCallTimeout, adaptiveTimeout, resultCache, false);
+    }
+
+    public MaximaInteractiveProcessImpl(final MaximaProcessController maximaProcessController, final int defaultCallTimeout,
+                                        final MaximaAdaptiveTimeout adaptiveTimeout, final MaximaResultCache resultCache,
+                                        final boolean fastPath) {
         this.maximaProcessController = maximaProcessController;
         this.defaultCallTimeout = defaultCallTimeout;
+        this.adaptiveTimeout = adaptiveTimeout;
+        this.resultCache = resultCache;
+        this.fastPath = fastPath;
     }
 
     public String executeCall(final String callInput) {
+        if (adaptiveTimeout != null && callInput != null) {
+            return executeCall(callInput, adaptiveTimeout.timeoutFor(callInput, defaultCallTimeout));
+        }
         return executeCall(callInput, defaultCallTimeout);
     }
 
@@ -28,14 +88,54 @@ public class MaximaInteractiveProcessImpl implements MaximaInteractiveProcess {
         LOG.debug("executeCall(input={}, timeout={})", callInput, callTimeout);
         Preconditions.checkNotNull(callInput, "maximaInput");
         ensureNotTerminated();
+        checkFastPath(callInput);
+        checkCaching(callInput);
+
+        if (fastPath) {
+            final String fastOutput = MaximaFastPath.evaluate(callInput);
+            if (fastOutput != null) {
+                LOG.debug("{} => {} (fast path)", callInput, fastOutput);
+                return fastOutput;
+            }
+        }
+
+        final String cacheKey = caching && MaximaInputs.isCacheable(callInput) ? cacheKey(callInput) : null;
+        if (cacheKey != null) {
+            final String cachedOutput = resultCache.get(cacheKey);
+            if (cachedOutput != null) {
+                LOG.debug("{} => {} (cached)", callInput, cachedOutput);
+                return cachedOutput;
+            }
+        }
 
+        final long startTime = System.nanoTime();
         String rawOutput = maximaProcessController.doMaximaCall(callInput, callTimeout);
+        recordLatency(callInput, System.nanoTime() - startTime);
+        checkTimedOut();
+        if (cacheKey != null && caching && !isTerminated()) {
+            resultCache.put(cacheKey, rawOutput);
+        }
 
         LOG.debug("{} => {}", callInput, rawOutput);
         return rawOutput;
     }
 
+    /**
+     * Feeds the latency of a completed call to the adaptive timeout statistics. Calls that
+     * killed the process or timed out are left out, as their real latency is unknown.
+     */
+    private void recordLatency(final String callInput, final long elapsedNanos) {
+        if (adaptiveTimeout == null || isTerminated() || maximaProcessController.lastCallTimedOut()) {
+            return;
+        }
+        adaptiveTimeout.record(callInput, elapsedNanos);
+    }
+
     public void executeCallDiscardOutput(final String callInput) {
+        if (adaptiveTimeout != null && callInput != null) {
+            executeCallDiscardOutput(callInput, adaptiveTimeout.timeoutFor(callInput, defaultCallTimeout));
+            return;
+        }
         executeCallDiscardOutput(callInput, defaultCallTimeout);
     }
 
@@ -43,12 +143,67 @@ public class MaximaInteractiveProcessImpl implements MaximaInteractiveProcess {
         LOG.debug("executeCallDiscardOutput(input={}, timeout={})", callInput, callTimeout);
         Preconditions.checkNotNull(callInput, "maximaInput");
         ensureNotTerminated();
+        checkFastPath(callInput);
+        checkCaching(callInput);
 
+        final long startTime = System.nanoTime();
         maximaProcessController.doMaximaCall(callInput, callTimeout);
+        recordLatency(callInput, System.nanoTime() - startTime);
+        checkTimedOut();
+    }
+
+    private void checkFastPath(final String callInput) {
+        if (fastPath && MaximaFastPath.mayAffectResults(callInput)) {
+            LOG.debug("Disabling fast path after call that may change arithmetic options or use output labels: {}", callInput);
+            fastPath = false;
+        }
+    }
+
+    /**
+     * Records the state changes the given input may make, switching off caching if they
+     * aren't known exactly.
+     */
+    private void checkCaching(final String callInput) {
+        if (!caching) {
+            return;
+        }
+        if (resultCache == null) {
+            caching = false;
+        } else if (MaximaInputs.isLiteralAssignment(callInput)
+                && assignments.length() + callInput.length() < MAX_ASSIGNMENTS_LENGTH) {
+            assignments.append(callInput.trim()).append('\n');
+        } else if (MaximaInputs.isStateChanging(callInput)) {
+            LOG.debug("Disabling result cache after call that may change state: {}", callInput);
+            caching = false;
+        }
+    }
+
+    private void checkTimedOut() {
+        if (caching && maximaProcessController.lastCallTimedOut()) {
+            LOG.debug("Disabling result cache after call timed out");
+            caching = false;
+        }
+    }
+
+    private String cacheKey(final String callInput) {
+        return assignments.length() == 0 ? callInput : assignments + "\u0000" + callInput;
     }
 
     public void softReset() {
-        executeCallDiscardOutput("[kill(all),reset()]$");
+        final long startTime = System.nanoTime();
+        ensureNotTerminated();
+        checkFastPath(RESET_INPUT);
+        maximaProcessController.doMaximaCall(RESET_INPUT, defaultCallTimeout);
+        checkTimedOut();
+        /* (This restores option variables and removes variables, but not anything else) */
+        assignments.setLength(0);
+        if (maximaProcessController.isObserved()) {
+            maximaProcessController.fireEvent(new MaximaEvent(MaximaEvent.Type.RESET, null, System.nanoTime() - startTime, -1, 0));
+        }
+    }
+
+    public boolean lastCallTimedOut() {
+        return maximaProcessController.lastCallTimedOut();
     }
 
     public int terminate() {
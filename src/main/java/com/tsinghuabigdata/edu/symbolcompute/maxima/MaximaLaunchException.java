@@ -0,0 +1,30 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link MaximaProcessLauncher} when a Maxima process could not be launched,
+ * or was not launched because the {@link MaximaLaunchGuard} refused it.
+ *
+ * @author tengyt
+ */
+public class MaximaLaunchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final MaximaCrashType crashType;
+
+    public MaximaLaunchException(final MaximaCrashType crashType, final String message) {
+        super(message);
+        this.crashType = crashType;
+    }
+
+    public MaximaLaunchException(final MaximaCrashType crashType, final String message, final Throwable cause) {
+        super(message, cause);
+        this.crashType = crashType;
+    }
+
+    public MaximaCrashType getCrashType() {
+        return crashType;
+    }
+}
@@ -0,0 +1,160 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter and circuit breaker protecting the host from launch storms when Maxima
+ * is broken (bad binary or core, out of memory, ...).
+ * <p/>
+ * Launches are throttled to a maximum rate. Once a number of consecutive launches
+ * have failed, the circuit opens and further launches are refused for an exponentially
+ * growing backoff period. After that, a single probe launch is let through
+ * ("half-open"): if it succeeds the circuit closes again, otherwise it re-opens with a
+ * longer backoff. A probe whose outcome is never recorded is given up on after a while,
+ * so that another one can be let through.
+ * <p/>
+ * An instance of this class is thread-safe.
+ *
+ * @author tengyt
+ */
+public class MaximaLaunchGuard {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaLaunchGuard.class);
+
+    public static final double DEFAULT_LAUNCH_RATE = 10.0;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+    public static final long DEFAULT_MAX_BACKOFF = 60000;
+
+    /**
+     * Default time after which a probe launch with no recorded outcome is given up on
+     */
+    public static final long DEFAULT_PROBE_TIMEOUT = 120000;
+
+    /**
+     * Maximum time a launch waits for the rate limiter before being refused
+     */
+    private static final long MAX_RATE_LIMIT_WAIT_MILLIS = 5000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final RateLimiter rateLimiter;
+    private final int failureThreshold;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long probeTimeoutNanos;
+    private final Ticker ticker;
+
+    private State state;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean probeInFlight;
+    private long probeStartedAt;
+    private MaximaCrashType lastCrashType;
+
+    public MaximaLaunchGuard(final MaximaConfiguration maximaConfiguration) {
+        this(maximaConfiguration.getLaunchRate(), maximaConfiguration.getLaunchFailureThreshold(),
+                maximaConfiguration.getLaunchInitialBackoff(), maximaConfiguration.getLaunchMaxBackoff(),
+                Math.max(DEFAULT_PROBE_TIMEOUT, 2 * TimeUnit.SECONDS.toMillis(maximaConfiguration.getStartupTimeout())),
+                Ticker.systemTicker());
+    }
+
+    MaximaLaunchGuard(final double launchRate, final int failureThreshold, final long initialBackoffMillis,
+                      final long maxBackoffMillis, final Ticker ticker) {
+        this(launchRate, failureThreshold, initialBackoffMillis, maxBackoffMillis, DEFAULT_PROBE_TIMEOUT, ticker);
+    }
+
+    /**
+     * @param launchRate           maximum number of launches per second
+     * @param failureThreshold     number of consecutive failures opening the circuit
+     * @param initialBackoffMillis time the circuit stays open after first opening
+     * @param maxBackoffMillis     upper bound on the time the circuit stays open
+     * @param probeTimeoutMillis   time after which a probe launch with no recorded outcome is given up on
+     */
+    MaximaLaunchGuard(final double launchRate, final int failureThreshold, final long initialBackoffMillis,
+                      final long maxBackoffMillis, final long probeTimeoutMillis, final Ticker ticker) {
+        Preconditions.checkArgument(launchRate > 0, "launchRate must be positive");
+        Preconditions.checkArgument(failureThreshold > 0, "failureThreshold must be positive");
+        this.rateLimiter = RateLimiter.create(launchRate);
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(initialBackoffMillis, maxBackoffMillis));
+        this.probeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(probeTimeoutMillis);
+        this.ticker = ticker;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Must be called before each launch attempt, which must then be followed by a call to
+     * either {@link #recordSuccess()} or {@link #recordFailure(MaximaCrashType)}.
+     *
+     * @throws MaximaLaunchException if the launch must not be attempted
+     */
+    public void beforeLaunch() throws MaximaLaunchException {
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (ticker.read() - openUntil < 0) {
+                    throw new MaximaLaunchException(MaximaCrashType.CIRCUIT_OPEN, "Maxima launches suspended after "
+                            + consecutiveFailures + " consecutive failures (last: " + lastCrashType + ")");
+                }
+                LOG.info("Letting a probe Maxima launch through after backoff");
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                probeStartedAt = ticker.read();
+                return;
+            }
+            if (state == State.HALF_OPEN && probeInFlight) {
+                if (ticker.read() - probeStartedAt < probeTimeoutNanos) {
+                    throw new MaximaLaunchException(MaximaCrashType.CIRCUIT_OPEN, "Waiting for the outcome of a probe Maxima launch");
+                }
+                LOG.warn("Probe Maxima launch never reported back, letting another one through");
+                probeStartedAt = ticker.read();
+                return;
+            }
+        }
+        if (!rateLimiter.tryAcquire(MAX_RATE_LIMIT_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new MaximaLaunchException(MaximaCrashType.RATE_LIMITED, "Too many Maxima launches");
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            LOG.info("Maxima launched successfully, closing launch circuit");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+    }
+
+    public synchronized void recordFailure(final MaximaCrashType crashType) {
+        consecutiveFailures++;
+        lastCrashType = crashType;
+        probeInFlight = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            final int exponent = Math.min(consecutiveFailures - failureThreshold, 20);
+            final long backoff = Math.min(maxBackoffNanos, initialBackoffNanos << Math.max(exponent, 0));
+            LOG.warn("Maxima launch failed ({}) {} times in a row, suspending launches for {}ms",
+                    crashType, consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(backoff));
+            state = State.OPEN;
+            openUntil = ticker.read() + backoff;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized MaximaCrashType getLastCrashType() {
+        return lastCrashType;
+    }
+}
@@ -0,0 +1,183 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates one Maxima expression numerically at many points, e.g. for numeric answer
+ * checking or plotting.
+ * <p/>
+ * The expression is turned into a floating point function once with
+ * <tt>coerce-float-fun</tt>, which is then applied to every point within the same
+ * <tt>:lisp</tt> call. Each result is printed exactly, as the hexadecimal mantissa and
+ * binary exponent returned by <tt>integer-decode-float</tt>, and rebuilt here into a
+ * <tt>double</tt> without going through decimal strings or boxed values.
+ * <p/>
+ * An instance of this class is immutable and thread-safe.
+ *
+ * @author tengyt
+ */
+public class MaximaNumericEvaluator {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaNumericEvaluator.class);
+
+    /**
+     * Default maximum number of points evaluated in a single Maxima call
+     */
+    public static final int DEFAULT_MAX_POINTS_PER_CALL = 16384;
+
+    private static final Pattern VARIABLE = Pattern.compile("[A-Za-z_%][A-Za-z0-9_%]*");
+
+    /**
+     * A result as printed by the evaluation call, see {@link #parseValue(String)}
+     */
+    private static final Pattern VALUE = Pattern.compile("-?[0-9A-Fa-f]{1,14}:-?[0-9]{1,4}");
+
+    /**
+     * Printed instead of a result for points where the expression could not be evaluated
+     * to a finite real number
+     */
+    private static final String NO_RESULT = "n";
+
+    private final int maxPointsPerCall;
+
+    public MaximaNumericEvaluator() {
+        this(DEFAULT_MAX_POINTS_PER_CALL);
+    }
+
+    public MaximaNumericEvaluator(final int maxPointsPerCall) {
+        Preconditions.checkArgument(maxPointsPerCall > 0, "maxPointsPerCall must be positive");
+        this.maxPointsPerCall = maxPointsPerCall;
+    }
+
+    /**
+     * Convenience version of {@link #evaluate(MaximaInteractiveProcess, String, List, double[], int)}
+     * taking one array of coordinates per point.
+     */
+    public double[] evaluate(final MaximaInteractiveProcess process, final String expression, final List<String> variables,
+                             final double[][] points, final int callTimeout) {
+        final double[] flattened = new double[points.length * variables.size()];
+        for (int i = 0; i < points.length; i++) {
+            Preconditions.checkArgument(points[i].length == variables.size(), "point %s does not have %s coordinates",
+                    i, variables.size());
+            System.arraycopy(points[i], 0, flattened, i * variables.size(), variables.size());
+        }
+        return evaluate(process, expression, variables, flattened, callTimeout);
+    }
+
+    /**
+     * Evaluates the given expression at the given points.
+     *
+     * @param expression  Maxima expression, without terminator
+     * @param variables   names of the variables the coordinates of the points are bound to
+     * @param points      coordinates of the points, one row of <tt>variables.size()</tt> values per point
+     * @param callTimeout timeout for each Maxima call
+     * @return value of the expression at each point, or {@link Double#NaN} at points where it
+     * could not be evaluated to a finite real number
+     * @throws IllegalStateException if Maxima did not return the expected output, e.g. after
+     *                               a timeout or because the expression does not parse. The
+     *                               process is terminated first, as late output from the call
+     *                               would otherwise be read by the next one.
+     */
+    public double[] evaluate(final MaximaInteractiveProcess process, final String expression, final List<String> variables,
+                             final double[] points, final int callTimeout) {
+        Preconditions.checkNotNull(process, "process");
+        Preconditions.checkArgument(expression.indexOf('?') < 0 && !MaximaInputs.isStateChanging(expression),
+                "expression must not change the state of Maxima: %s", expression);
+        Preconditions.checkArgument(!variables.isEmpty(), "no variables given");
+        for (final String variable : variables) {
+            Preconditions.checkArgument(VARIABLE.matcher(variable).matches(), "bad variable name %s", variable);
+        }
+        Preconditions.checkArgument(points.length % variables.size() == 0,
+                "number of coordinates is not a multiple of the number of variables");
+
+        final int pointCount = points.length / variables.size();
+        final double[] results = new double[pointCount];
+        for (int start = 0; start < pointCount; start += maxPointsPerCall) {
+            final int end = Math.min(pointCount, start + maxPointsPerCall);
+            final String output = process.executeCall(buildCall(expression, variables, points, start, end), callTimeout);
+            if (!parseResults(output, results, start, end - start)) {
+                LOG.warn("Unexpected output from numeric evaluation of {} points, terminating process: {}", end - start, output);
+                process.terminate();
+                throw new IllegalStateException("Unexpected output from Maxima numeric evaluation");
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Builds the <tt>:lisp</tt> call evaluating the expression at points <tt>start</tt>
+     * (inclusive) to <tt>end</tt> (exclusive).
+     */
+    static String buildCall(final String expression, final List<String> variables, final double[] points,
+                            final int start, final int end) {
+        final int dimension = variables.size();
+        final StringBuilder call = new StringBuilder(64 + (end - start) * dimension * 24);
+        call.append(":lisp (let ((f (coerce-float-fun ($parse_string ").append(MaximaInputs.quoteString(expression))
+                .append(") (cons '(mlist) (mapcar #'$parse_string '(");
+        for (final String variable : variables) {
+            call.append(MaximaInputs.quoteString(variable)).append(' ');
+        }
+        call.append("))))) (p #(");
+        for (int i = start * dimension; i < end * dimension; i++) {
+            Preconditions.checkArgument(!Double.isNaN(points[i]) && !Double.isInfinite(points[i]),
+                    "coordinates must be finite");
+            call.append(toLispDouble(points[i])).append(' ');
+        }
+        call.append("))) (loop for i from 0 below (length p) by ").append(dimension)
+                .append(" do (princ (or (ignore-errors (let ((r (apply f (coerce (subseq p i (+ i ").append(dimension)
+                .append(")) 'list)))) (when (floatp r) (multiple-value-bind (m e s) (integer-decode-float (coerce r 'double-float))")
+                .append(" (format nil \"~:[~;-~]~x:~d\" (minusp s) m e))))) \"").append(NO_RESULT).append("\"))")
+                .append(" (princ #\\Space)) (terpri) (values))");
+        return call.toString();
+    }
+
+    /**
+     * Parses the output of a call made by {@link #buildCall(String, List, double[], int, int)}
+     * into the given results array.
+     *
+     * @return false if the output is not made of <tt>count</tt> values
+     */
+    static boolean parseResults(final String output, final double[] results, final int offset, final int count) {
+        final String[] values = output.trim().split(" ");
+        if (values.length != count || (count > 0 && values[0].isEmpty())) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!NO_RESULT.equals(values[i]) && !VALUE.matcher(values[i]).matches()) {
+                return false;
+            }
+            results[offset + i] = parseValue(values[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Parses a value printed as <tt>[-]mantissa:exponent</tt>, with a hexadecimal mantissa
+     * and decimal exponent, which is exactly <tt>mantissa * 2^exponent</tt>.
+     */
+    static double parseValue(final String value) {
+        if (NO_RESULT.equals(value)) {
+            return Double.NaN;
+        }
+        final int colon = value.indexOf(':');
+        final boolean negative = value.charAt(0) == '-';
+        final long mantissa = Long.parseLong(value.substring(negative ? 1 : 0, colon), 16);
+        final int exponent = Integer.parseInt(value.substring(colon + 1));
+        final double magnitude = Math.scalb((double) mantissa, exponent);
+        return negative ? -magnitude : magnitude;
+    }
+
+    /**
+     * Writes a double so that the Lisp reader reads it back as exactly the same double-float.
+     */
+    static String toLispDouble(final double value) {
+        final String javaString = Double.toString(value);
+        final int exponent = javaString.indexOf('E');
+        return exponent < 0 ? javaString + "d0" : javaString.substring(0, exponent) + "d" + javaString.substring(exponent + 1);
+    }
+}
@@ -5,12 +5,13 @@ import com.tsinghuabigdata.common.utils.StringCollectionUtils;
 import org.apache.logging.log4j.Logger;
 import com.tsinghuabigdata.common.logging.LogFactory;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * output read worker
@@ -19,42 +20,104 @@ import java.util.concurrent.Callable;
 public class MaximaOutputTask implements Callable<String> {
     private static final Logger LOG = LogFactory.getLogger(MaximaOutputTask.class);
 
-    private static final int MAX_TRY = 3;
+    /**
+     * Interval between checks for output while waiting for it
+     */
+    private static final long POLL_MILLIS = 5;
 
     private int timeout;
     private final InputStream maximaStdout;
 
+    /**
+     * Text printed once the call has finished, or null to read a single line of output
+     */
+    private final String endMarker;
+
+    private volatile boolean timedOut;
+
     public MaximaOutputTask(InputStream maximaStdout, int timeout) {
+        this(maximaStdout, timeout, null);
+    }
+
+    /**
+     * Creates a task reading every line of output up to the given end marker, waiting up to
+     * the given number of seconds for it.
+     */
+    MaximaOutputTask(InputStream maximaStdout, int timeout, String endMarker) {
         this.timeout = timeout;
         this.maximaStdout = maximaStdout;
+        this.endMarker = endMarker;
     }
 
     @Override
     public String call() throws IOException {
-        return doMaximaReadLoop();
+        return endMarker != null ? doMaximaReadUntilMarker() : doMaximaReadLoop();
+    }
+
+    /**
+     * Returns whether the call did not finish in time, i.e. no output was read (or the end
+     * marker was not), once {@link #call()} has returned.
+     */
+    boolean isTimedOut() {
+        return timedOut;
     }
 
     private String doMaximaReadLoop() throws IOException {
-        List<String> line = Lists.newLinkedList();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        final String line;
         synchronized (maximaStdout) {
-            InputStreamReader isr = new InputStreamReader(maximaStdout);
-            BufferedReader br = new BufferedReader(isr);
-            int retryCount = 0;
-            while (maximaStdout.available() > 0 || retryCount < MAX_TRY) {
-                if (maximaStdout.available() <= 0) {
-                    int sleep = retryCount == 0 ? 50 : (timeout * 1000) / MAX_TRY;
-                    try {
-                        Thread.sleep(sleep);
-                        retryCount++;
-                    } catch (InterruptedException e) {
-                        LOG.error(e);
-                    }
-                } else {
-                    line.add(br.readLine().trim());
+            line = readLine(deadline);
+        }
+        timedOut = line == null;
+        return line == null ? "" : line.trim();
+    }
+
+    private String doMaximaReadUntilMarker() throws IOException {
+        List<String> lines = Lists.newLinkedList();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        synchronized (maximaStdout) {
+            String line;
+            while ((line = readLine(deadline)) != null) {
+                final String text = line.trim();
+                if (text.contains(endMarker)) {
                     break;
+                } else if (!text.isEmpty()) {
+                    lines.add(text);
+                }
+            }
+            timedOut = line == null;
+        }
+        return StringCollectionUtils.join(lines, System.lineSeparator());
+    }
+
+    /**
+     * Reads the next line of output, checking for it every {@link #POLL_MILLIS} so that the
+     * time a call is seen to take stays close to the time it really took.
+     *
+     * @return the line, or null if it was not complete by the deadline
+     */
+    private String readLine(final long deadline) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            if (maximaStdout.available() <= 0) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return null;
                 }
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                continue;
+            }
+            final int c = maximaStdout.read();
+            if (c == -1) {
+                throw new EOFException("Maxima closed its output");
+            } else if (c == '\n') {
+                return line.toString("UTF-8");
             }
+            line.write(c);
         }
-        return StringCollectionUtils.join(line, System.lineSeparator());
     }
 }
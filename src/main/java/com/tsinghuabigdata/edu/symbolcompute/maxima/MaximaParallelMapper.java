@@ -0,0 +1,315 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates a list of independent Maxima inputs in parallel across the processes of a
+ * {@link MaximaProcessPool}.
+ * <p/>
+ * The inputs are split into chunks which are dealt out to one worker per process; a
+ * worker that runs out of chunks steals from the others, so a few slow inputs don't
+ * hold up the whole batch.
+ * <p/>
+ * Simple inputs (a single statement terminated by <tt>;</tt>) are evaluated under
+ * <tt>errcatch</tt>, and their results are the <tt>string()</tt> forms of the values,
+ * which match <tt>display2d:false</tt> output for ordinary results but are never broken
+ * over lines. Within a chunk, runs of simple inputs are pipelined into a single Maxima
+ * call; the results are the same whether or not an input was pipelined. Other inputs
+ * are evaluated as they are, and their results are Maxima's raw output.
+ * <p/>
+ * A run whose pipelined call fails is evaluated again one input at a time, so a failure
+ * or timeout only affects the input that caused it. (A process whose call timed out or
+ * gave unexpected output is terminated, since it may still be busy, and the worker
+ * carries on with a new one.)
+ * <p/>
+ * An instance of this class is thread-safe. Call {@link #close()} once finished with it.
+ *
+ * @author tengyt
+ */
+public class MaximaParallelMapper {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaParallelMapper.class);
+
+    /**
+     * Maximum number of inputs in a chunk
+     */
+    public static final int MAX_CHUNK_SIZE = 64;
+
+    /**
+     * Target number of chunks per worker, giving idle workers something to steal
+     */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    /**
+     * Separates results in the output of a pipelined call (ASCII record separator)
+     */
+    private static final char RESULT_SEPARATOR = '\u001e';
+
+    /**
+     * Stands for a failed input in the output of a pipelined call (ASCII negative acknowledge)
+     */
+    private static final String FAILED_RESULT = "\u0015";
+
+    private final MaximaProcessPool pool;
+    private final ExecutorService executor;
+
+    public MaximaParallelMapper(final MaximaProcessPool pool) {
+        Preconditions.checkNotNull(pool, "MaximaProcessPool");
+        this.pool = pool;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "maxima-parallel-map");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Evaluates the given inputs with the given per-call timeout, waiting up to the
+     * same number of seconds for free processes.
+     *
+     * @param inputs      Maxima inputs, each including its terminator
+     * @param callTimeout timeout for each Maxima call
+     * @return raw Maxima output for each input, in the same order, with null for inputs
+     * whose evaluation failed or which could not be given a process
+     */
+    public List<String> parallelMap(final List<String> inputs, final int callTimeout) throws InterruptedException {
+        Preconditions.checkNotNull(inputs, "inputs");
+        final String[] results = new String[inputs.size()];
+        if (inputs.isEmpty()) {
+            return Arrays.asList(results);
+        }
+        final int workerCount = Math.min(pool.getMaxSize(), inputs.size());
+        final int chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, inputs.size() / (workerCount * CHUNKS_PER_WORKER)));
+        final List<Deque<int[]>> queues = Lists.newArrayListWithCapacity(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            queues.add(new ConcurrentLinkedDeque<int[]>());
+        }
+        int chunkIndex = 0;
+        for (int start = 0; start < inputs.size(); start += chunkSize) {
+            queues.get(chunkIndex++ % workerCount).add(new int[]{start, Math.min(start + chunkSize, inputs.size())});
+        }
+
+        final List<Future<?>> futures = Lists.newArrayListWithCapacity(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            final int workerIndex = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    runWorker(workerIndex, queues, inputs, results, callTimeout);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (final Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Parallel map worker failed", e.getCause());
+                }
+            }
+        } finally {
+            for (final Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Stops the worker threads. The pool itself is left alone.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void runWorker(final int workerIndex, final List<Deque<int[]>> queues, final List<String> inputs,
+                           final String[] results, final int callTimeout) throws InterruptedException {
+        MaximaInteractiveProcess process = null;
+        try {
+            int[] chunk;
+            while ((chunk = nextChunk(workerIndex, queues)) != null) {
+                if (process == null || process.isTerminated()) {
+                    if (process != null) {
+                        pool.returnProcess(process);
+                    }
+                    process = borrow(callTimeout);
+                    if (process == null) {
+                        /* (Leave the remaining chunks to the other workers, if they can get processes) */
+                        queues.get(workerIndex).addFirst(chunk);
+                        return;
+                    }
+                }
+                final int next = runChunk(process, chunk, inputs, results, callTimeout);
+                if (next < chunk[1]) {
+                    /* (Carry on with the rest one input at a time, on a new process if this one was terminated) */
+                    queues.get(workerIndex).addFirst(new int[]{next, chunk[1], 1});
+                }
+            }
+        } finally {
+            if (process != null) {
+                pool.returnProcess(process);
+            }
+        }
+    }
+
+    private MaximaInteractiveProcess borrow(final int callTimeout) throws InterruptedException {
+        try {
+            final MaximaInteractiveProcess process = pool.borrowProcess(callTimeout, TimeUnit.SECONDS);
+            if (process == null) {
+                LOG.warn("No Maxima process became available for parallel map within {}s", callTimeout);
+            }
+            return process;
+        } catch (IOException e) {
+            LOG.warn("Could not get a Maxima process for parallel map", e);
+            return null;
+        }
+    }
+
+    /**
+     * Takes the next chunk from the front of this worker's own queue, or else steals one
+     * from the back of another worker's queue.
+     */
+    private static int[] nextChunk(final int workerIndex, final List<Deque<int[]>> queues) {
+        final int[] own = queues.get(workerIndex).pollFirst();
+        if (own != null) {
+            return own;
+        }
+        for (int i = 1; i < queues.size(); i++) {
+            final int[] stolen = queues.get((workerIndex + i) % queues.size()).pollLast();
+            if (stolen != null) {
+                return stolen;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates the inputs in the given chunk, which is <tt>{start, end, noPipelining}</tt>.
+     *
+     * @return index of the first input not evaluated, which is less than the end of the
+     * chunk if the process had to be terminated or a pipelined call failed
+     */
+    private static int runChunk(final MaximaInteractiveProcess process, final int[] chunk, final List<String> inputs,
+                                final String[] results, final int callTimeout) {
+        final boolean pipelining = chunk.length < 3;
+        int index = chunk[0];
+        while (index < chunk[1]) {
+            if (process.isTerminated()) {
+                return index;
+            }
+            if (!isPipelinable(inputs.get(index))) {
+                results[index] = runSingle(process, inputs.get(index), callTimeout);
+                index++;
+                continue;
+            }
+            int runEnd = index + 1;
+            while (pipelining && runEnd < chunk[1] && isPipelinable(inputs.get(runEnd))) {
+                runEnd++;
+            }
+            if (runPipelined(process, index, runEnd, inputs, results, callTimeout)) {
+                index = runEnd;
+            } else if (runEnd - index == 1) {
+                /* (A run of one input is never retried, so its result stays null) */
+                index++;
+            } else {
+                return index;
+            }
+        }
+        return index;
+    }
+
+    private static String runSingle(final MaximaInteractiveProcess process, final String input, final int callTimeout) {
+        try {
+            final String output = process.executeCall(input, callTimeout);
+            if (process.lastCallTimedOut()) {
+                /* Timed out: Maxima is still busy, so its next output would be stale */
+                LOG.warn("Maxima call timed out during parallel map, terminating process: {}", input);
+                process.terminate();
+                return null;
+            }
+            return output;
+        } catch (RuntimeException e) {
+            LOG.warn("Maxima call failed during parallel map: {}", input, e);
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates the given run of simple inputs in a single call, which prints their results
+     * using {@link MaximaInputs#printFramed(String, String)}.
+     *
+     * @return whether this succeeded; if not, the inputs should be evaluated one by one
+     */
+    private static boolean runPipelined(final MaximaInteractiveProcess process, final int start, final int end,
+                                        final List<String> inputs, final String[] results, final int callTimeout) {
+        final StringBuilder values = new StringBuilder("simplode(map(lambda([%pm_x],")
+                .append("if %pm_x=[] then ascii(21) else string(first(%pm_x))),[");
+        for (int i = start; i < end; i++) {
+            final String input = inputs.get(i).trim();
+            if (i > start) {
+                values.append(',');
+            }
+            values.append("errcatch(eval_string(").append(MaximaInputs.quoteString(input.substring(0, input.length() - 1)))
+                    .append("))");
+        }
+        values.append("]),ascii(30))");
+        final String nonce = MaximaInputs.newNonce();
+
+        final String output;
+        try {
+            output = process.executeCall("block([errormsg:false]," + MaximaInputs.printFramed(values.toString(), nonce)
+                    + ")$", callTimeout * (end - start));
+        } catch (RuntimeException e) {
+            LOG.debug("Pipelined Maxima call failed", e);
+            return false;
+        }
+        final String framed = MaximaInputs.unframe(output, nonce);
+        final String[] parts = framed != null ? framed.split(String.valueOf(RESULT_SEPARATOR), -1) : null;
+        if (parts == null || parts.length != end - start) {
+            /* Timed out, or output left over from an earlier call: either way Maxima's next output would be stale */
+            LOG.warn("Unexpected output from pipelined Maxima call, terminating process: {}", output);
+            process.terminate();
+            return false;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            results[start + i] = FAILED_RESULT.equals(parts[i]) ? null : parts[i].trim();
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the given input is a single statement terminated by <tt>;</tt>
+     * (judged conservatively, so terminators inside string literals also count).
+     */
+    static boolean isPipelinable(final String input) {
+        final String trimmed = input.trim();
+        if (!trimmed.endsWith(";") || trimmed.startsWith(":lisp")) {
+            return false;
+        }
+        for (int i = 0; i < trimmed.length() - 1; i++) {
+            final char c = trimmed.charAt(i);
+            if (c == ';' || c == '$') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
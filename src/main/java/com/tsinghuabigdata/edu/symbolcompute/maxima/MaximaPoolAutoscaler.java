@@ -0,0 +1,144 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically grows or shrinks a {@link MaximaProcessPool} according to demand.
+ * <p/>
+ * Each Maxima process is single-threaded and CPU bound, so by default the pool never
+ * grows beyond the number of CPUs available (see {@link MaximaConfiguration#getPoolSize()}).
+ * The pool grows, launching the new processes straight away, while callers are waiting
+ * for a process or almost all processes are busy. It shrinks one process at a time after
+ * utilisation has stayed low for a while, down to a minimum size.
+ * <p/>
+ * Call {@link #close()} once finished with this; the pool itself is left alone.
+ *
+ * @author tengyt
+ */
+public class MaximaPoolAutoscaler {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaPoolAutoscaler.class);
+
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * Fraction of busy processes at or above which the pool grows
+     */
+    static final double HIGH_UTILIZATION = 0.8;
+
+    /**
+     * Fraction of busy processes at or below which the pool may shrink
+     */
+    static final double LOW_UTILIZATION = 0.3;
+
+    /**
+     * Number of consecutive intervals with low utilisation before the pool shrinks
+     */
+    static final int SHRINK_AFTER_INTERVALS = 10;
+
+    private final MaximaProcessPool pool;
+    private final int minSize;
+    private final int maxSize;
+    private final ScheduledExecutorService scheduler;
+    private int lowIntervals;
+
+    public MaximaPoolAutoscaler(final MaximaProcessPool pool, final MaximaConfiguration maximaConfiguration) {
+        this(pool, maximaConfiguration.getPoolMinSize(),
+                maximaConfiguration.getPoolSize() > 0 ? maximaConfiguration.getPoolSize() : MaximaCpus.availableCpus(),
+                maximaConfiguration.getPoolAutoscaleInterval());
+    }
+
+    /**
+     * Creates and starts a new autoscaler.
+     *
+     * @param minSize        size the pool never shrinks below
+     * @param maxSize        size the pool never grows beyond
+     * @param intervalMillis time between two adjustments
+     */
+    public MaximaPoolAutoscaler(final MaximaProcessPool pool, final int minSize, final int maxSize, final long intervalMillis) {
+        Preconditions.checkNotNull(pool, "MaximaProcessPool");
+        Preconditions.checkArgument(minSize > 0 && minSize <= maxSize, "need 0 < minSize <= maxSize");
+        Preconditions.checkArgument(intervalMillis > 0, "intervalMillis must be positive");
+        this.pool = pool;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        pool.setMaxSize(Math.max(minSize, Math.min(maxSize, pool.getMaxSize())));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "maxima-pool-autoscaler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    adjust();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    LOG.error("Maxima pool autoscaling failed", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks at the current demand and resizes the pool if required.
+     *
+     * @return the new maximum size of the pool
+     */
+    synchronized int adjust() throws InterruptedException {
+        if (pool.isClosed()) {
+            scheduler.shutdown();
+            return pool.getMaxSize();
+        }
+        final int size = pool.getMaxSize();
+        final int waiting = pool.getWaitingCount();
+        final int busy = pool.getLiveCount() - pool.getIdleCount();
+        final double utilization = (double) busy / size;
+        if ((waiting > 0 || utilization >= HIGH_UTILIZATION) && size < maxSize) {
+            lowIntervals = 0;
+            final int newSize = Math.min(maxSize, size + Math.max(1, waiting));
+            LOG.debug("Growing Maxima pool from {} to {} ({} busy, {} waiting)", size, newSize, busy, waiting);
+            pool.setMaxSize(newSize);
+            try {
+                pool.prestart(newSize);
+            } catch (IOException e) {
+                LOG.warn("Could not launch all Maxima processes for grown pool", e);
+            }
+            return newSize;
+        }
+        if (waiting == 0 && utilization <= LOW_UTILIZATION && size > minSize) {
+            if (++lowIntervals >= SHRINK_AFTER_INTERVALS) {
+                lowIntervals = 0;
+                LOG.debug("Shrinking Maxima pool from {} to {} ({} busy)", size, size - 1, busy);
+                pool.setMaxSize(size - 1);
+                return size - 1;
+            }
+            return size;
+        }
+        lowIntervals = 0;
+        return size;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -4,10 +4,12 @@ import com.tsinghuabigdata.common.logging.LogFactory;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides basic I/O functionality for a Maxima process.
@@ -28,6 +30,25 @@ public class MaximaProcessController {
      */
     private static final int PROCESS_KILL_TIMEOUT = 1;
 
+    /**
+     * Text printed by the probe call used to detect that Maxima is ready
+     */
+    static final String READY_MARKER = "maxima-java-ready";
+
+    /**
+     * Probe call sent by {@link #awaitReady(int)}. (This works whether or not Maxima has
+     * been told to hide its banner and input prompts.)
+     */
+    private static final String READY_PROBE = "print(\"" + READY_MARKER + "\")$";
+
+    /**
+     * Text printed after each call terminated by <tt>$</tt>, which may otherwise print
+     * nothing at all, so that we can tell whether it has finished
+     */
+    static final String CALL_END_MARKER = "maxima-java-done";
+
+    private static final String CALL_END_PROBE = "print(\"" + CALL_END_MARKER + "\")$";
+
     /**
      * {@link MaximaProcessLauncher} owning this
      */
@@ -68,15 +89,53 @@ public class MaximaProcessController {
      */
     private boolean terminated;
 
+    /**
+     * Whether the last call made by {@link #doMaximaCall(String, int)} timed out
+     */
+    private volatile boolean lastCallTimedOut;
+
+    /**
+     * CPU the process is pinned to, or -1 (reset once the process has terminated)
+     */
+    private final AtomicInteger pinnedCpu;
+
+    /**
+     * PID of the process if it was forked by the launcher's {@link MaximaZygote}, or -1
+     */
+    private final AtomicInteger forkedPid;
+
     public MaximaProcessController(final MaximaProcessLauncher launcher, final Process maximaProcess, final OutputStream maximaStderrHandler) {
+        this(launcher, maximaProcess, maximaProcess.getOutputStream(), maximaProcess.getInputStream(),
+                maximaProcess.getErrorStream(), maximaStderrHandler);
+    }
+
+    /**
+     * Creates a controller talking to Maxima over the given streams rather than the pipes
+     * of its {@link Process}, e.g. over a {@link MaximaSocketTransport} connection.
+     *
+     * @param maximaProcess underlying process, or null if Maxima was not launched by us
+     * @param maximaStderr  Maxima STDERR handle, or null if not available
+     */
+    MaximaProcessController(final MaximaProcessLauncher launcher, final Process maximaProcess, final OutputStream maximaStdin,
+                            final InputStream maximaStdout, final InputStream maximaStderr, final OutputStream maximaStderrHandler) {
         this.launcher = launcher;
         this.maximaProcess = maximaProcess;
         this.maximaStderrHandler = maximaStderrHandler;
         this.executor = Executors.newFixedThreadPool(3); /* (stdin, stdout, stderr, shutdown) */
-        this.maximaStdout = maximaProcess.getInputStream();
-        this.maximaStderr = maximaProcess.getErrorStream();
-        this.maximaStdin = maximaProcess.getOutputStream();
+        this.maximaStdout = maximaStdout;
+        this.maximaStderr = maximaStderr;
+        this.maximaStdin = maximaStdin;
         this.terminated = false;
+        this.pinnedCpu = new AtomicInteger(-1);
+        this.forkedPid = new AtomicInteger(-1);
+    }
+
+    void setPinnedCpu(final int cpu) {
+        pinnedCpu.set(cpu);
+    }
+
+    void setForkedPid(final int pid) {
+        forkedPid.set(pid);
     }
 
     public boolean isTerminated() {
@@ -90,8 +149,9 @@ public class MaximaProcessController {
      * Calling this on a process that has already terminated will do nothing.
      *
      * @return underlying exit value from the Maxima process, {@link MaximaInteractiveProcess#PROCESS_ALREADY_TERMINATED}
-     * if the process was already terminated, or {@link MaximaInteractiveProcess#PROCESS_FORCIBLY_DESTROYED}
-     * if the process had to be forcibly destroyed.
+     * if the process was already terminated, {@link MaximaInteractiveProcess#PROCESS_FORCIBLY_DESTROYED}
+     * if the process had to be forcibly destroyed, or {@link MaximaInteractiveProcess#PROCESS_DETACHED}
+     * if it was not launched by us.
      */
     public int terminate() {
         if (terminated) {
@@ -104,6 +164,19 @@ public class MaximaProcessController {
 
     /* (Thread safe) */
     private int terminateMaximaProcess() {
+        final int exitValue = destroyMaximaProcess();
+        final int cpu = pinnedCpu.getAndSet(-1);
+        if (cpu >= 0 && launcher != null) {
+            launcher.releaseCpu(cpu);
+        }
+        if (isObserved()) {
+            fireEvent(new MaximaEvent(exitValue == MaximaInteractiveProcess.PROCESS_FORCIBLY_DESTROYED
+                    ? MaximaEvent.Type.KILLED : MaximaEvent.Type.TERMINATED, null, 0L, -1, exitValue));
+        }
+        return exitValue;
+    }
+
+    private int destroyMaximaProcess() {
         terminated = true;
         try {
             try {
@@ -112,6 +185,12 @@ public class MaximaProcessController {
                 synchronized (maximaStdin) {
                     maximaStdin.close();
                 }
+                if (maximaProcess == null) {
+                    /* (Attached over a socket: closing the connection is all we can do, unless our zygote forked it) */
+                    final int pid = forkedPid.getAndSet(-1);
+                    return pid > 0 && launcher != null ? launcher.reapForkedProcess(pid)
+                            : MaximaInteractiveProcess.PROCESS_DETACHED;
+                }
                 final FutureTask<Integer> shutdownTask = new FutureTask<>(new Callable<Integer>() {
                     public Integer call() throws Exception {
                         return maximaProcess.waitFor();
@@ -121,6 +200,9 @@ public class MaximaProcessController {
                 return shutdownTask.get(PROCESS_KILL_TIMEOUT, TimeUnit.SECONDS);
             } catch (final Exception e) {
                 LOG.debug("Maxima process did not terminate naturally, so forcibly terminating", e);
+                if (maximaProcess == null) {
+                    return MaximaInteractiveProcess.PROCESS_DETACHED;
+                }
                 maximaProcess.destroy();
                 return MaximaInteractiveProcess.PROCESS_FORCIBLY_DESTROYED;
             }
@@ -136,22 +218,127 @@ public class MaximaProcessController {
         }
     }
 
+    /**
+     * Waits for a freshly started Maxima process to finish starting up, by sending a
+     * probe call and discarding everything Maxima outputs up to and including the
+     * probe's output (banner, first input prompt, ...).
+     *
+     * @param startupTimeout maximum number of seconds to wait, or zero (or less) to wait indefinitely
+     * @throws IOException if Maxima exits or does not become ready in time
+     */
+    public void awaitReady(final int startupTimeout) throws IOException {
+        ensureNotTerminated();
+        doMaximaWriteLoop(READY_PROBE);
+        final Future<Void> readyFuture = executor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                skipPastReadyMarker();
+                return null;
+            }
+        });
+        try {
+            if (startupTimeout > 0) {
+                readyFuture.get(startupTimeout, TimeUnit.SECONDS);
+            } else {
+                readyFuture.get();
+            }
+        } catch (final ExecutionException e) {
+            throw new IOException("Maxima exited during startup", e.getCause());
+        } catch (final TimeoutException e) {
+            readyFuture.cancel(true);
+            throw new IOException("Maxima did not become ready within " + startupTimeout + "s");
+        } catch (final InterruptedException e) {
+            readyFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Maxima to become ready");
+        }
+        LOG.trace("Maxima process is ready");
+    }
+
+    private void skipPastReadyMarker() throws IOException {
+        synchronized (maximaStdout) {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = maximaStdout.read()) != -1) {
+                if (c == '\n') {
+                    if (line.indexOf(READY_MARKER) >= 0) {
+                        return;
+                    }
+                    LOG.trace("MAXIMA<<<(startup): {}", line);
+                    line.setLength(0);
+                } else {
+                    line.append((char) c);
+                }
+            }
+        }
+        throw new EOFException("Maxima closed its output during startup");
+    }
+
     public String doMaximaCall(String cmd, int callTimeout) {
         ensureNotTerminated();
+        if (!isObserved()) {
+            return invokeMaxima(cmd, callTimeout);
+        }
+        fireEvent(new MaximaEvent(MaximaEvent.Type.CALL_STARTED, cmd, 0L, -1, 0));
+        final long startTime = System.nanoTime();
+        final String raw = invokeMaxima(cmd, callTimeout);
+        final MaximaEvent.Type outcome;
+        if (terminated) {
+            outcome = MaximaEvent.Type.CALL_FAILED;
+        } else if (lastCallTimedOut) {
+            outcome = MaximaEvent.Type.CALL_TIMED_OUT;
+        } else {
+            outcome = MaximaEvent.Type.CALL_FINISHED;
+        }
+        fireEvent(new MaximaEvent(outcome, cmd, System.nanoTime() - startTime, raw.length(), 0));
+        return raw;
+    }
+
+    /**
+     * Returns whether the last call made by {@link #doMaximaCall(String, int)} timed out,
+     * in which case Maxima may still be busy with it, and will print its output later.
+     */
+    public boolean lastCallTimedOut() {
+        return lastCallTimedOut;
+    }
+
+    /**
+     * Returns whether {@link MaximaEvent}s need to be fired.
+     */
+    boolean isObserved() {
+        return launcher != null && launcher.hasEventListeners();
+    }
+
+    void fireEvent(final MaximaEvent event) {
+        launcher.fireEvent(event);
+    }
+
+    /**
+     * Makes a call, recording whether it timed out. A call terminated by <tt>;</tt> always
+     * prints something, so it timed out if it printed nothing in time; a call terminated
+     * by <tt>$</tt> is followed by {@link #CALL_END_PROBE}, and timed out if the probe's
+     * output did not arrive in time.
+     */
+    private String invokeMaxima(String cmd, int callTimeout) {
+        lastCallTimedOut = false;
         try {
             String raw = "";
             if (callTimeout > 0) {
                 /* Wait until timeout */
                 LOG.trace("Invoking maxima call using timeout {}s", callTimeout);
+                final boolean silent = cmd.trim().endsWith("$");
                 try {
-                    doMaximaWriteLoop(cmd);
+                    doMaximaWriteLoop(silent ? cmd + CALL_END_PROBE : cmd);
                 } catch (IOException e) {
                     LOG.debug("Timeout was exceeded communicating with Maxima - terminating the process");
                     terminateMaximaProcess();
+                    return "";
                 }
 
-                Future<String> outputFuture = executor.submit(new MaximaOutputTask(maximaStdout, callTimeout));
+                final MaximaOutputTask outputTask = new MaximaOutputTask(maximaStdout, callTimeout,
+                        silent ? CALL_END_MARKER : null);
+                Future<String> outputFuture = executor.submit(outputTask);
                 raw = outputFuture.get();
+                lastCallTimedOut = outputTask.isTimedOut();
             }
             return raw;
         } catch (final ExecutionException e) {
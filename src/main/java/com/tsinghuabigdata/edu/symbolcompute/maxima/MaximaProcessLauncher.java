@@ -6,10 +6,20 @@ import com.google.common.collect.Maps;
 import com.tsinghuabigdata.common.logging.LogFactory;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,11 +49,94 @@ public class MaximaProcessLauncher {
      */
     public static final int DEFAULT_CALL_TIMEOUT = 10;
 
+    /**
+     * Default value for {@link MaximaConfiguration#getStartupTimeout()}
+     */
+    public static final int DEFAULT_STARTUP_TIMEOUT = 30;
+
+    /**
+     * Time given to a process that failed to become ready to exit, so that its exit code
+     * can be used to classify the failure
+     */
+    private static final int EXIT_WAIT_MILLIS = 500;
+
     /**
      * Underlying {@link MaximaConfiguration} used by this launcher
      */
     private final MaximaConfiguration maximaConfiguration;
 
+    /**
+     * Latency statistics shared by all processes launched by this, if adaptive timeouts are enabled
+     */
+    private final MaximaAdaptiveTimeout adaptiveTimeout;
+
+    /**
+     * Throttles launches and suspends them while Maxima keeps failing to start
+     */
+    private final MaximaLaunchGuard launchGuard;
+
+    /**
+     * Number of seconds to wait for a new process to become ready
+     */
+    private final int startupTimeout;
+
+    /**
+     * Runs asynchronous launches, created on first use
+     */
+    private ExecutorService launchExecutor;
+
+    /**
+     * Socket transport used with {@link MaximaConfiguration.Transport#SOCKET}, created on first use
+     */
+    private MaximaSocketTransport socketTransport;
+
+    /**
+     * Listeners receiving {@link MaximaEvent}s from the processes launched by this
+     */
+    private final List<MaximaEventListener> eventListeners;
+
+    /**
+     * CPUs processes get pinned to, or null if pinning is disabled
+     */
+    private final List<Integer> pinnableCpus;
+
+    /**
+     * Number of live processes pinned to each of {@link #pinnableCpus}
+     */
+    private final int[] pinnedProcessCounts;
+
+    /**
+     * Persistent result cache, opened on first launch if configured
+     */
+    private MaximaResultCache resultCache;
+    private boolean resultCacheOpened;
+
+    /**
+     * Fork server used if {@link MaximaConfiguration#isZygote()} is set, started on first launch
+     */
+    private MaximaZygote zygote;
+
+    /**
+     * Whether a thread is currently starting the zygote (outside the lock)
+     */
+    private boolean zygoteStarting;
+
+    /**
+     * Number of consecutive failed zygote starts, and time after which another may be tried
+     */
+    private int zygoteFailures;
+    private long zygoteRetryTime;
+
+    /**
+     * Number of times a forked process is polled for having exited by itself before it gets killed
+     */
+    private static final int FORKED_EXIT_POLLS = 10;
+
+    /**
+     * Expression giving the Maxima version the result cache is keyed on
+     */
+    private static final String VERSION_EXPRESSION = "build_info()@version";
+
     /**
      * Creates a new Maxima process launcher, using the given {@link MaximaConfiguration}
      * to specify how to run and connect to Maxima.
@@ -51,16 +144,107 @@ public class MaximaProcessLauncher {
     public MaximaProcessLauncher(final MaximaConfiguration maximaConfiguration) {
         Preconditions.checkNotNull(maximaConfiguration, "MaximaConfiguration");
         this.maximaConfiguration = maximaConfiguration;
+        this.adaptiveTimeout = maximaConfiguration.isAdaptiveTimeout() ? new MaximaAdaptiveTimeout(maximaConfiguration) : null;
+        this.launchGuard = new MaximaLaunchGuard(maximaConfiguration);
+        this.startupTimeout = computeDefaultTimeout(maximaConfiguration.getStartupTimeout(), DEFAULT_STARTUP_TIMEOUT);
+        this.eventListeners = new CopyOnWriteArrayList<>();
+        final List<Integer> allowedCpus = maximaConfiguration.isPinCpus() ? MaximaCpus.allowedCpus() : null;
+        if (allowedCpus != null && allowedCpus.isEmpty()) {
+            logger.warn("Can't determine the CPUs available here, so not pinning Maxima processes to CPUs");
+        }
+        this.pinnableCpus = allowedCpus != null && !allowedCpus.isEmpty() ? allowedCpus : null;
+        this.pinnedProcessCounts = pinnableCpus != null ? new int[pinnableCpus.size()] : null;
+        if (maximaConfiguration.getSlowCallThreshold() > 0) {
+            eventListeners.add(new MaximaSlowCallLog(maximaConfiguration.getSlowCallThreshold(),
+                    maximaConfiguration.getSlowCallSampleRate()));
+        }
+    }
+
+    /**
+     * Registers a listener to receive {@link MaximaEvent}s from all processes launched by
+     * this, including ones launched before it was registered.
+     */
+    public void addEventListener(final MaximaEventListener listener) {
+        Preconditions.checkNotNull(listener, "MaximaEventListener");
+        eventListeners.add(listener);
+    }
+
+    public void removeEventListener(final MaximaEventListener listener) {
+        eventListeners.remove(listener);
+    }
+
+    /**
+     * Returns whether anyone is listening, so that events need not be created otherwise.
+     */
+    boolean hasEventListeners() {
+        return !eventListeners.isEmpty();
+    }
+
+    void fireEvent(final MaximaEvent event) {
+        for (final MaximaEventListener listener : eventListeners) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                logger.warn("MaximaEventListener {} failed", listener, e);
+            }
+        }
     }
 
     /**
      * Launches a new {@link MaximaInteractiveProcess} that you can send individual calls
      * to.
+     * <p/>
+     * This returns once Maxima has finished starting up and has evaluated a first probe
+     * call, so the first call made by the caller does not pay for the startup.
      */
     public MaximaInteractiveProcess launchInteractiveProcess() throws IOException {
         return launchInteractiveProcess(null);
     }
 
+    /**
+     * Asynchronous version of {@link #launchInteractiveProcess()}.
+     */
+    public Future<MaximaInteractiveProcess> launchInteractiveProcessAsync() {
+        return getLaunchExecutor().submit(new Callable<MaximaInteractiveProcess>() {
+            public MaximaInteractiveProcess call() throws IOException, InterruptedException {
+                final MaximaInteractiveProcess process = launchInteractiveProcess();
+                if (Thread.interrupted()) {
+                    /* (Cancelled while launching, so nobody will get the process) */
+                    process.terminate();
+                    throw new InterruptedException();
+                }
+                return process;
+            }
+        });
+    }
+
+    /**
+     * Launches the given number of processes in parallel, e.g. to pre-spawn a pool at
+     * application startup.
+     *
+     * @return one {@link Future} per process, in no particular order of completion
+     */
+    public List<Future<MaximaInteractiveProcess>> launchInteractiveProcessesAsync(final int count) {
+        final List<Future<MaximaInteractiveProcess>> futures = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            futures.add(launchInteractiveProcessAsync());
+        }
+        return futures;
+    }
+
+    private synchronized ExecutorService getLaunchExecutor() {
+        if (launchExecutor == null) {
+            launchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "maxima-launcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return launchExecutor;
+    }
+
     /**
      * Launches a new {@link MaximaInteractiveProcess} that you can send individual calls
      * to.
@@ -68,10 +252,14 @@ public class MaximaProcessLauncher {
      * @param maximaStderrHandler optional OutputStram that will receive any STDERR output
      *                            from Maxima. This may be null, which will result in this output being discarded.
      *                            The caller is reponsible for closing this stream afterwards.
+     * @throws MaximaLaunchException if Maxima failed to start, or launches are currently suspended
+     *                               by the {@link MaximaLaunchGuard}
      */
     public MaximaInteractiveProcess launchInteractiveProcess(OutputStream maximaStderrHandler) throws IOException {
-        final MaximaInteractiveProcessImpl process = new MaximaInteractiveProcessImpl(newMaximaProcessController(maximaStderrHandler),
-                computeDefaultTimeout(maximaConfiguration.getDefaultCallTimeout(), DEFAULT_CALL_TIMEOUT));
+        final MaximaProcessController controller = newMaximaProcessController(maximaStderrHandler);
+        final MaximaInteractiveProcessImpl process = new MaximaInteractiveProcessImpl(controller,
+                computeDefaultTimeout(maximaConfiguration.getDefaultCallTimeout(), DEFAULT_CALL_TIMEOUT), adaptiveTimeout,
+                getResultCache(controller), maximaConfiguration.isFastPath());
         logger.debug("Maxima interactive process started and ready for communication");
         return process;
     }
@@ -87,10 +275,422 @@ public class MaximaProcessLauncher {
     }
 
     private MaximaProcessController newMaximaProcessController(OutputStream maximaStderrHandler) throws IOException {
-        return new MaximaProcessController(this, launchMaximaProcess(), maximaStderrHandler);
+        launchGuard.beforeLaunch();
+        /* (Every outcome must be recorded, or a half-open launch guard would wait for it until the probe expires) */
+        boolean outcomeRecorded = false;
+        try {
+            final long launchStartTime = System.nanoTime();
+            final MaximaZygote forkServer = maximaConfiguration.isZygote() ? getZygote() : null;
+            final MaximaSocketTransport transport = maximaConfiguration.getTransport() == MaximaConfiguration.Transport.SOCKET
+                    || forkServer != null ? getSocketTransport() : null;
+            final int cpu = forkServer == null ? acquireCpu() : -1;
+            Process maximaProcess = null;
+            MaximaProcessController controller = null;
+            try {
+                if (forkServer != null) {
+                    controller = forkMaximaProcess(forkServer, transport, maximaStderrHandler);
+                } else if (transport == null) {
+                    maximaProcess = startMaximaProcess(null, null, cpu);
+                    controller = new MaximaProcessController(this, maximaProcess, maximaStderrHandler);
+                } else {
+                    /* (The token makes sure we get the connection of the process we started, whichever connects first) */
+                    final String token = UUID.randomUUID().toString();
+                    maximaProcess = startMaximaProcess(transport.getPort(), token, cpu);
+                    controller = newSocketController(transport, token, maximaProcess, maximaStderrHandler);
+                }
+                controller.awaitReady(startupTimeout);
+            } catch (IOException e) {
+                releaseCpu(cpu);
+                final MaximaLaunchException failure = launchFailed(maximaProcess, forkServer != null, controller, e);
+                outcomeRecorded = true;
+                throw failure;
+            } catch (RuntimeException e) {
+                releaseCpu(cpu);
+                if (controller != null) {
+                    controller.terminate();
+                } else if (maximaProcess != null) {
+                    maximaProcess.destroy();
+                }
+                throw e;
+            }
+            controller.setPinnedCpu(cpu);
+            launchGuard.recordSuccess();
+            outcomeRecorded = true;
+            if (hasEventListeners()) {
+                fireEvent(new MaximaEvent(MaximaEvent.Type.LAUNCHED, null, System.nanoTime() - launchStartTime, -1, 0));
+            }
+            return controller;
+        } finally {
+            if (!outcomeRecorded) {
+                launchGuard.recordFailure(MaximaCrashType.CRASHED);
+            }
+        }
+    }
+
+    private MaximaProcessController newSocketController(final MaximaSocketTransport transport, final String token,
+                                                        final Process maximaProcess,
+                                                        final OutputStream maximaStderrHandler) throws IOException {
+        final MaximaSocketConnection connection;
+        try {
+            connection = transport.accept(token, startupTimeout > 0 ? startupTimeout : Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Maxima to connect");
+        }
+        if (connection == null) {
+            throw new IOException("Maxima did not connect to port " + transport.getPort() + " within " + startupTimeout + "s");
+        }
+        return new MaximaProcessController(this, maximaProcess, connection.getOutputStream(), connection.getInputStream(),
+                maximaProcess != null ? maximaProcess.getErrorStream() : null, maximaStderrHandler);
+    }
+
+    /**
+     * Asks the zygote for a new process and connects to it.
+     */
+    private MaximaProcessController forkMaximaProcess(final MaximaZygote forkServer, final MaximaSocketTransport transport,
+                                                      final OutputStream maximaStderrHandler) throws IOException {
+        final String token = UUID.randomUUID().toString();
+        final int pid = forkServer.fork(transport.getPort(), token);
+        final MaximaProcessController controller;
+        try {
+            controller = newSocketController(transport, token, null, maximaStderrHandler);
+        } catch (IOException e) {
+            reapForkedProcess(pid);
+            throw e;
+        }
+        controller.setForkedPid(pid);
+        logger.debug("Maxima zygote forked process {}", pid);
+        return controller;
+    }
+
+    /**
+     * Returns the zygote, starting it the first time round. The zygote is started outside
+     * the lock, so other launches and {@link #reapForkedProcess(int)} don't wait for it, and
+     * only published once it is ready. Failed starts are retried after a backoff growing from
+     * {@link MaximaConfiguration#getLaunchInitialBackoff()} up to
+     * {@link MaximaConfiguration#getLaunchMaxBackoff()}.
+     *
+     * @return the zygote, or null if it is not available (yet), in which case processes are
+     * launched normally
+     */
+    private MaximaZygote getZygote() {
+        synchronized (this) {
+            if (zygote != null && !zygote.isAlive()) {
+                logger.warn("Maxima zygote has terminated, starting a new one");
+                zygote = null;
+            }
+            if (zygote != null || zygoteStarting || (zygoteFailures > 0 && System.nanoTime() - zygoteRetryTime < 0)) {
+                return zygote;
+            }
+            zygoteStarting = true;
+        }
+        MaximaZygote started = null;
+        Process zygoteProcess = null;
+        try {
+            zygoteProcess = startMaximaProcess(null, null, -1);
+            /* (No launcher given, so the zygote's own calls don't show up as events) */
+            final MaximaProcessController controller = new MaximaProcessController(null, zygoteProcess, null);
+            controller.awaitReady(startupTimeout);
+            started = new MaximaZygote(controller, startupTimeout > 0 ? startupTimeout : DEFAULT_STARTUP_TIMEOUT);
+        } catch (IOException e) {
+            logger.warn("Could not start Maxima zygote, launching processes normally until it is retried", e);
+            if (zygoteProcess != null) {
+                zygoteProcess.destroy();
+            }
+        } finally {
+            synchronized (this) {
+                zygoteStarting = false;
+                if (started != null) {
+                    zygote = started;
+                    zygoteFailures = 0;
+                } else {
+                    final long backoff = Math.min(Math.max(maximaConfiguration.getLaunchInitialBackoff(),
+                            maximaConfiguration.getLaunchMaxBackoff()),
+                            maximaConfiguration.getLaunchInitialBackoff() << Math.min(zygoteFailures, 30));
+                    zygoteFailures++;
+                    zygoteRetryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+                    logger.debug("Retrying Maxima zygote start in {}ms", backoff);
+                }
+            }
+        }
+        return started;
     }
 
-    private Process launchMaximaProcess() throws IOException {
+    /**
+     * Called when a process forked by the zygote is terminated, after its connection has been
+     * closed. The process is given a short while to exit by itself before it gets killed.
+     *
+     * @return the exit value, {@link MaximaInteractiveProcess#PROCESS_FORCIBLY_DESTROYED} if it
+     * had to be killed, or {@link MaximaInteractiveProcess#PROCESS_DETACHED} if the zygote is gone
+     */
+    int reapForkedProcess(final int pid) {
+        final MaximaZygote forkServer;
+        synchronized (this) {
+            forkServer = zygote;
+        }
+        if (forkServer == null) {
+            return MaximaInteractiveProcess.PROCESS_DETACHED;
+        }
+        try {
+            for (int i = 0; i < FORKED_EXIT_POLLS; i++) {
+                final int exitValue = forkServer.reap(pid, false);
+                if (exitValue != MaximaZygote.STILL_RUNNING) {
+                    return exitValue;
+                }
+                Thread.sleep(EXIT_WAIT_MILLIS / FORKED_EXIT_POLLS);
+            }
+            return forkServer.reap(pid, true);
+        } catch (IOException e) {
+            logger.warn("Could not reap Maxima process {} forked by the zygote", pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return MaximaInteractiveProcess.PROCESS_DETACHED;
+    }
+
+    /**
+     * Cleans up after a launch that failed, classifies the failure and records it with the {@link MaximaLaunchGuard}.
+     */
+    private MaximaLaunchException launchFailed(final Process maximaProcess, final boolean forked,
+                                               final MaximaProcessController controller, final IOException e) {
+        final MaximaCrashType crashType;
+        if (forked) {
+            crashType = MaximaCrashType.UNRESPONSIVE;
+            logger.warn("Process forked by the Maxima zygote did not become ready", e);
+            if (controller != null) {
+                controller.terminate();
+            }
+        } else if (maximaProcess == null) {
+            crashType = MaximaCrashType.MISSING_EXECUTABLE;
+            logger.warn("Could not start Maxima", e);
+        } else {
+            final Integer exitCode = waitForExit(maximaProcess);
+            final String stderr = readAvailable(maximaProcess.getErrorStream());
+            crashType = exitCode != null ? MaximaCrashType.classify(exitCode, stderr) : MaximaCrashType.UNRESPONSIVE;
+            logger.warn("Maxima did not become ready (exit code {}, {}): {}", exitCode, crashType, stderr);
+            if (controller != null) {
+                controller.terminate();
+            } else {
+                maximaProcess.destroy();
+            }
+        }
+        launchGuard.recordFailure(crashType);
+        return new MaximaLaunchException(crashType, "Maxima did not become ready: " + e.getMessage(), e);
+    }
+
+    /**
+     * Attaches to a Maxima server started independently of this launcher, waiting up to
+     * the startup timeout for it to connect.
+     *
+     * @see #attachInteractiveProcess(int)
+     */
+    public MaximaInteractiveProcess attachInteractiveProcess() throws IOException {
+        return attachInteractiveProcess(startupTimeout > 0 ? startupTimeout : DEFAULT_STARTUP_TIMEOUT);
+    }
+
+    /**
+     * Attaches to a Maxima server started independently of this launcher, e.g. by a
+     * supervisor running <tt>maxima -s &lt;port&gt;</tt> against the fixed
+     * {@link MaximaConfiguration#getTransportPort()}. Such processes are not tied to this
+     * JVM's lifecycle; terminating the returned process just closes its connection.
+     * <p/>
+     * This requires {@link MaximaConfiguration.Transport#SOCKET}.
+     *
+     * @param connectTimeout maximum number of seconds to wait for a Maxima to connect
+     * @throws IOException if no Maxima connected and became ready in time
+     */
+    public MaximaInteractiveProcess attachInteractiveProcess(final int connectTimeout) throws IOException {
+        Preconditions.checkState(maximaConfiguration.getTransport() == MaximaConfiguration.Transport.SOCKET,
+                "attaching requires the socket transport");
+        final MaximaSocketTransport transport = getSocketTransport();
+        final MaximaSocketConnection connection;
+        try {
+            connection = transport.accept(null, connectTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Maxima to connect");
+        }
+        if (connection == null) {
+            throw new IOException("No Maxima connected to port " + transport.getPort() + " within " + connectTimeout + "s");
+        }
+        final MaximaProcessController controller = new MaximaProcessController(this, null, connection.getOutputStream(),
+                connection.getInputStream(), null, null);
+        try {
+            controller.awaitReady(startupTimeout);
+        } catch (IOException e) {
+            controller.terminate();
+            throw e;
+        }
+        logger.debug("Attached to Maxima server on port {}", transport.getPort());
+        return new MaximaInteractiveProcessImpl(controller,
+                computeDefaultTimeout(maximaConfiguration.getDefaultCallTimeout(), DEFAULT_CALL_TIMEOUT), adaptiveTimeout,
+                getResultCache(controller), maximaConfiguration.isFastPath());
+    }
+
+    /**
+     * Releases resources held by this launcher itself (the socket transport and zygote, if
+     * used, and the threads used for asynchronous launches). Processes already launched are
+     * not affected, except that socket connections are closed.
+     */
+    public synchronized void close() {
+        if (zygote != null) {
+            zygote.close();
+            zygote = null;
+        }
+        if (resultCache != null) {
+            resultCache.close();
+            resultCache = null;
+        }
+        if (socketTransport != null) {
+            socketTransport.close();
+            socketTransport = null;
+        }
+        if (launchExecutor != null) {
+            launchExecutor.shutdown();
+            launchExecutor = null;
+        }
+    }
+
+    /**
+     * Returns the persistent result cache, opening it the first time round if one has been
+     * configured. The cache is keyed on the version reported by the given (freshly launched)
+     * process, so results are never shared between different Maxima versions; if it does not
+     * report one, the cache is not used at all.
+     *
+     * @return the cache, or null if there is none
+     * @throws IOException if the process did not report its version in time, in which case
+     *                     it has been terminated (as its late reply would be taken for the
+     *                     output of the caller's first call)
+     */
+    private MaximaResultCache getResultCache(final MaximaProcessController controller) throws IOException {
+        synchronized (this) {
+            if (resultCacheOpened || maximaConfiguration.getResultCacheDir().isEmpty()) {
+                return resultCache;
+            }
+        }
+        /* (Asked outside the lock, so other launches don't wait for this call) */
+        final String nonce = MaximaInputs.newNonce();
+        final int versionTimeout = startupTimeout > 0 ? startupTimeout : DEFAULT_STARTUP_TIMEOUT;
+        final String output = controller.doMaximaCall(MaximaInputs.printFramed(VERSION_EXPRESSION, nonce) + "$",
+                versionTimeout);
+        if (controller.lastCallTimedOut() || controller.isTerminated()) {
+            controller.terminate();
+            throw new IOException("Maxima did not report its version within " + versionTimeout + "s");
+        }
+        final String maximaVersion = MaximaInputs.unframe(output, nonce);
+        synchronized (this) {
+            if (resultCacheOpened) {
+                return resultCache;
+            }
+            resultCacheOpened = true;
+            if (maximaVersion == null || maximaVersion.trim().isEmpty()) {
+                logger.warn("Maxima did not report its version, carrying on without a result cache: {}", output);
+                return null;
+            }
+            try {
+                resultCache = new MaximaResultCache(new File(maximaConfiguration.getResultCacheDir()),
+                        MaximaResultCache.fingerprint(maximaConfiguration, maximaVersion.trim()),
+                        maximaConfiguration.getResultCacheMaxBytes());
+            } catch (IOException e) {
+                logger.warn("Could not open Maxima result cache, carrying on without it", e);
+            }
+            return resultCache;
+        }
+    }
+
+    /**
+     * Picks the CPU the next process gets pinned to, i.e. the one with the fewest processes
+     * pinned to it so far.
+     *
+     * @return the CPU, or -1 if pinning is disabled
+     */
+    private int acquireCpu() {
+        if (pinnableCpus == null) {
+            return -1;
+        }
+        synchronized (pinnedProcessCounts) {
+            int best = 0;
+            for (int i = 1; i < pinnedProcessCounts.length; i++) {
+                if (pinnedProcessCounts[i] < pinnedProcessCounts[best]) {
+                    best = i;
+                }
+            }
+            pinnedProcessCounts[best]++;
+            return pinnableCpus.get(best);
+        }
+    }
+
+    /**
+     * Called when a process pinned to the given CPU has terminated (or failed to launch).
+     */
+    void releaseCpu(final int cpu) {
+        if (pinnableCpus == null || cpu < 0) {
+            return;
+        }
+        synchronized (pinnedProcessCounts) {
+            final int index = pinnableCpus.indexOf(cpu);
+            if (index >= 0 && pinnedProcessCounts[index] > 0) {
+                pinnedProcessCounts[index]--;
+            }
+        }
+    }
+
+    private synchronized MaximaSocketTransport getSocketTransport() throws IOException {
+        if (socketTransport == null) {
+            socketTransport = new MaximaSocketTransport(maximaConfiguration.getTransportPort());
+        }
+        return socketTransport;
+    }
+
+    /**
+     * Returns the {@link MaximaLaunchGuard} protecting launches made by this.
+     */
+    public MaximaLaunchGuard getLaunchGuard() {
+        return launchGuard;
+    }
+
+    /**
+     * Gives a process that failed to start a short while to exit.
+     *
+     * @return the exit code if the process exited, or null if it is still running
+     */
+    private Integer waitForExit(final Process process) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EXIT_WAIT_MILLIS);
+        while (true) {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                /* (Still running) */
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private String readAvailable(final InputStream stream) {
+        try {
+            final byte[] buffer = new byte[Math.min(Math.max(stream.available(), 0), 4096)];
+            final int read = stream.read(buffer);
+            return read > 0 ? new String(buffer, 0, read) : "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @param socketPort port Maxima should connect back to in client-server mode, or null
+     *                   to talk to it over its STDIN/STDOUT
+     * @param token      token identifying Maxima's connection, see {@link MaximaSocketTransport#TOKEN_VARIABLE}
+     * @param cpu        CPU to pin Maxima to, or -1 to leave it to the OS
+     */
+    private Process startMaximaProcess(final Integer socketPort, final String token, final int cpu) throws IOException {
         /* Extract relevant configuration required to get Maxima running */
         final String maximaExecutablePath = maximaConfiguration.getMaximaExecutablePath();
         List<String> maximaCommandArguments = maximaConfiguration.getMaximaCommandArguments();
@@ -98,6 +698,12 @@ public class MaximaProcessLauncher {
 
         /* Build up the resulting command that we will execute */
         final List<String> maximaCommandArray = Lists.newLinkedList();
+        if (cpu >= 0) {
+            /* (taskset execs Maxima, so the pinned process is still the one we control) */
+            maximaCommandArray.add("taskset");
+            maximaCommandArray.add("-c");
+            maximaCommandArray.add(String.valueOf(cpu));
+        }
         final Pattern windowsMagicPattern = Pattern.compile("^(.+?\\\\Maxima-([\\d.]+))\\\\bin\\\\maxima.bat$");
         final Matcher windowsMagicMatcher = windowsMagicPattern.matcher(maximaExecutablePath);
         if (windowsMagicMatcher.matches()) {
@@ -144,10 +750,20 @@ public class MaximaProcessLauncher {
             }
         }
 
+        if (socketPort != null) {
+            maximaCommandArray.add("-s");
+            maximaCommandArray.add(socketPort.toString());
+        }
+
         logger.debug("Starting Maxima cmdarray {} with environment {}", maximaCommandArray, maximaRuntimeEnvironment);
         ProcessBuilder pb = new ProcessBuilder();
         Map<String, String> env = pb.environment();
         env.putAll(maximaConfiguration.getMaximaRuntimeEnvironment());
+        if (token != null) {
+            env.put(MaximaSocketTransport.TOKEN_VARIABLE, token);
+        } else {
+            env.remove(MaximaSocketTransport.TOKEN_VARIABLE);
+        }
         pb.command(maximaCommandArray);
         return pb.start();
     }
@@ -0,0 +1,309 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of {@link MaximaInteractiveProcess}es created by a {@link MaximaProcessLauncher}.
+ * <p/>
+ * Processes are launched lazily, up to the configured size, and handed out to one
+ * caller at a time with {@link #borrowProcess(long, TimeUnit)}. Callers must give them
+ * back with {@link #returnProcess(MaximaInteractiveProcess)}; processes that have been
+ * terminated in the meantime (e.g. because of a failed call) or whose last call timed
+ * out are dropped and replaced on demand. The size can be changed at runtime, e.g. by a {@link MaximaPoolAutoscaler}.
+ * <p/>
+ * An instance of this class is thread-safe.
+ *
+ * @author tengyt
+ */
+public class MaximaProcessPool {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaProcessPool.class);
+
+    /**
+     * {@link MaximaProcessLauncher} used to create new processes
+     */
+    private final MaximaProcessLauncher launcher;
+
+    /**
+     * Longest time a borrower waits for a returned process before checking whether the
+     * pool has been allowed to grow in the meantime
+     */
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Maximum number of live processes
+     */
+    private volatile int maxSize;
+
+    /**
+     * Processes that are currently not lent out
+     */
+    private final BlockingQueue<MaximaInteractiveProcess> idleProcesses;
+
+    /**
+     * Number of live processes, both idle and lent out
+     */
+    private final AtomicInteger liveCount;
+
+    /**
+     * Number of callers currently waiting in {@link #borrowProcess(long, TimeUnit)}
+     */
+    private final AtomicInteger waitingCount;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new pool, sized according to {@link MaximaConfiguration#getPoolSize()}.
+     */
+    public MaximaProcessPool(final MaximaProcessLauncher launcher, final MaximaConfiguration maximaConfiguration) {
+        this(launcher, computePoolSize(maximaConfiguration.getPoolSize()));
+    }
+
+    public MaximaProcessPool(final MaximaProcessLauncher launcher, final int maxSize) {
+        Preconditions.checkNotNull(launcher, "MaximaProcessLauncher");
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+        this.launcher = launcher;
+        this.maxSize = maxSize;
+        this.idleProcesses = new LinkedBlockingQueue<>();
+        this.liveCount = new AtomicInteger();
+        this.waitingCount = new AtomicInteger();
+        this.closed = false;
+    }
+
+    private static int computePoolSize(final int configured) {
+        return configured > 0 ? configured : MaximaCpus.availableCpus();
+    }
+
+    /**
+     * Launches processes in parallel until the pool holds the given number of live
+     * processes (capped at its maximum size), waiting for all of them to become ready.
+     * Use this at application startup so that early calls don't pay for launching.
+     *
+     * @return the number of processes actually launched
+     * @throws IOException if any of the launches failed (the others are still added to the pool)
+     */
+    public int prestart(final int count) throws IOException, InterruptedException {
+        ensureNotClosed();
+        final List<Future<MaximaInteractiveProcess>> futures = Lists.newArrayList();
+        while (liveCount.get() < count && reserveSlot()) {
+            futures.add(launcher.launchInteractiveProcessAsync());
+        }
+        int launched = 0;
+        IOException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                idleProcesses.offer(futures.get(i).get());
+                launched++;
+            } catch (InterruptedException e) {
+                abandonLaunches(futures.subList(i, futures.size()));
+                throw e;
+            } catch (ExecutionException e) {
+                liveCount.decrementAndGet();
+                LOG.warn("Failed to prestart pooled Maxima process", e.getCause());
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        LOG.debug("Prestarted {} pooled Maxima processes", launched);
+        if (failure != null) {
+            throw failure;
+        }
+        return launched;
+    }
+
+    /**
+     * Cancels the given launches made by {@link #prestart(int)}, terminating the processes of
+     * any that have already finished, and releases their slots.
+     */
+    private void abandonLaunches(final List<Future<MaximaInteractiveProcess>> futures) {
+        for (final Future<MaximaInteractiveProcess> future : futures) {
+            liveCount.decrementAndGet();
+            if (future.cancel(true)) {
+                continue;
+            }
+            try {
+                future.get().terminate();
+            } catch (ExecutionException e) {
+                /* (Failed anyway) */
+            } catch (InterruptedException e) {
+                /* (Can't happen, the launch is done) */
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                /* (Cancelled elsewhere) */
+            }
+        }
+    }
+
+    /**
+     * Borrows a process from the pool, launching a new one if none is idle and the pool
+     * has not reached its maximum size yet.
+     *
+     * @param waitTimeout maximum time to wait for a process to be returned by another caller
+     * @return a process for the exclusive use of the caller, or null if none became available in time
+     */
+    public MaximaInteractiveProcess borrowProcess(final long waitTimeout, final TimeUnit unit) throws IOException, InterruptedException {
+        ensureNotClosed();
+        MaximaInteractiveProcess process = pollLiveProcess();
+        if (process != null) {
+            return process;
+        }
+        if (reserveSlot()) {
+            return launchReserved();
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(waitTimeout);
+        long remaining;
+        waitingCount.incrementAndGet();
+        try {
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                process = idleProcesses.poll(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                if (process != null) {
+                    if (!process.isTerminated()) {
+                        return process;
+                    }
+                    discard(process);
+                }
+                if (reserveSlot()) {
+                    return launchReserved();
+                }
+            }
+        } finally {
+            waitingCount.decrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Hands a process previously obtained with {@link #borrowProcess(long, TimeUnit)} back to
+     * the pool. A process whose last call timed out is terminated instead, as the next
+     * borrower would get its late output.
+     */
+    public void returnProcess(final MaximaInteractiveProcess process) {
+        Preconditions.checkNotNull(process, "process");
+        if (closed || process.isTerminated() || process.lastCallTimedOut() || liveCount.get() > maxSize) {
+            discard(process);
+            return;
+        }
+        idleProcesses.offer(process);
+    }
+
+    /**
+     * Convenience method which borrows a process, executes the given call on it and returns it to the pool.
+     *
+     * @param borrowTimeout maximum number of seconds to wait for a free process
+     * @return raw Maxima output, or null if no process became available in time
+     */
+    public String executeCall(final String maximaInput, final int callTimeout, final int borrowTimeout) throws IOException, InterruptedException {
+        final MaximaInteractiveProcess process = borrowProcess(borrowTimeout, TimeUnit.SECONDS);
+        if (process == null) {
+            return null;
+        }
+        try {
+            return process.executeCall(maximaInput, callTimeout);
+        } finally {
+            returnProcess(process);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of live processes. When shrinking, surplus idle processes
+     * are terminated straight away, and lent out ones as they are returned.
+     */
+    public void setMaxSize(final int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+        this.maxSize = maxSize;
+        MaximaInteractiveProcess process;
+        while (liveCount.get() > maxSize && (process = idleProcesses.poll()) != null) {
+            discard(process);
+        }
+    }
+
+    public int getLiveCount() {
+        return liveCount.get();
+    }
+
+    public int getIdleCount() {
+        return idleProcesses.size();
+    }
+
+    public int getWaitingCount() {
+        return waitingCount.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Terminates all idle processes. Processes currently lent out are terminated as they
+     * are returned.
+     */
+    public void close() {
+        closed = true;
+        MaximaInteractiveProcess process;
+        while ((process = idleProcesses.poll()) != null) {
+            discard(process);
+        }
+    }
+
+    private MaximaInteractiveProcess pollLiveProcess() {
+        MaximaInteractiveProcess process;
+        while ((process = idleProcesses.poll()) != null) {
+            if (!process.isTerminated()) {
+                return process;
+            }
+            discard(process);
+        }
+        return null;
+    }
+
+    private boolean reserveSlot() {
+        int live;
+        do {
+            live = liveCount.get();
+            if (live >= maxSize) {
+                return false;
+            }
+        } while (!liveCount.compareAndSet(live, live + 1));
+        return true;
+    }
+
+    private MaximaInteractiveProcess launchReserved() throws IOException {
+        try {
+            final MaximaInteractiveProcess process = launcher.launchInteractiveProcess();
+            LOG.debug("Launched pooled Maxima process ({} of {})", liveCount.get(), maxSize);
+            return process;
+        } catch (IOException | RuntimeException e) {
+            liveCount.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void discard(final MaximaInteractiveProcess process) {
+        liveCount.decrementAndGet();
+        process.terminate();
+    }
+
+    private void ensureNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("MaximaProcessPool has been closed");
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent cache of Maxima call results, shared by all JVMs on a host that use the same
+ * cache directory and the same Maxima setup, and surviving restarts.
+ * <p/>
+ * Results are kept in an append-only log file which is memory mapped in full, with an
+ * in-memory hash index from input to record built by scanning the log. The header of the
+ * file holds the end of the log: writers append records under a {@link FileLock} and then
+ * publish them by moving the end, and readers index whatever has been published since
+ * they last looked. When the log is full, it is compacted into a new file keeping the
+ * newest half of the results, which is moved into place; the old file is then marked as
+ * retired so that other JVMs switch to the new one. If the move fails (e.g. on platforms
+ * that don't allow replacing a file another JVM has mapped), the full log is kept as it is
+ * until the cache is reopened.
+ * <p/>
+ * The log file name includes a fingerprint of the Maxima version and of the command line
+ * and environment (e.g. preloaded packages) Maxima is run with, so results computed by a
+ * different setup are never used. Within a setup, {@link MaximaInteractiveProcessImpl}
+ * only caches inputs accepted by {@link MaximaInputs#isCacheable(String)}, keyed on the
+ * input and the option variables set on the process so far.
+ * <p/>
+ * Caching is best effort: I/O problems are logged and treated as misses. An instance of
+ * this class is thread-safe.
+ *
+ * @author tengyt
+ */
+public class MaximaResultCache implements Closeable {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaResultCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final int MAGIC = 0x4D584331;
+    private static final int FORMAT_VERSION = 2;
+
+    /* Header layout */
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int FINGERPRINT_OFFSET = 8;
+    private static final int RETIRED_OFFSET = 16;
+    private static final int END_OFFSET = 20;
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * Size of the record header (input and output lengths)
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File file;
+    private final long fingerprint;
+
+    /**
+     * Size of new log files
+     */
+    private final int maxBytes;
+
+    /**
+     * Size of the current log file (which may have been created by a JVM with a different maximum size)
+     */
+    private int capacity;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer log;
+
+    /**
+     * Hash of input to offset of the newest record for it, covering the log up to {@link #indexedEnd}
+     */
+    private final Map<Long, Integer> index;
+    private int indexedEnd;
+    private boolean closed;
+
+    /**
+     * Cleared when compacting fails, after which a full log is left as it is until the cache
+     * is reopened (as every later update would otherwise try again)
+     */
+    private boolean compactable;
+
+    /**
+     * Opens (creating it if required) the cache for the given fingerprint in the given directory.
+     *
+     * @param fingerprint value identifying the Maxima setup, see {@link #fingerprint(MaximaConfiguration, String)}
+     * @param maxBytes    maximum size of the log file
+     */
+    public MaximaResultCache(final File directory, final long fingerprint, final long maxBytes) throws IOException {
+        Preconditions.checkArgument(maxBytes > HEADER_SIZE && maxBytes <= Integer.MAX_VALUE,
+                "maxBytes must be between %s and %s", HEADER_SIZE, Integer.MAX_VALUE);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + directory);
+        }
+        this.file = new File(directory, "maxima-results-" + Long.toHexString(fingerprint) + ".log");
+        this.fingerprint = fingerprint;
+        this.maxBytes = (int) maxBytes;
+        this.index = Maps.newHashMap();
+        open();
+    }
+
+    /**
+     * Computes a fingerprint of the Maxima setup described by the given configuration.
+     *
+     * @param maximaVersion version reported by Maxima (e.g. <tt>build_info()@version</tt>)
+     */
+    public static long fingerprint(final MaximaConfiguration maximaConfiguration, final String maximaVersion) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putInt(FORMAT_VERSION)
+                .putString(String.valueOf(maximaVersion), StandardCharsets.UTF_8).putChar('\0')
+                .putString(maximaConfiguration.getMaximaExecutablePath(), StandardCharsets.UTF_8).putChar('\0');
+        for (final String argument : maximaConfiguration.getMaximaCommandArguments()) {
+            hasher.putString(argument, StandardCharsets.UTF_8).putChar('\0');
+        }
+        for (final Map.Entry<String, String> env : new TreeMap<>(maximaConfiguration.getMaximaRuntimeEnvironment()).entrySet()) {
+            hasher.putString(env.getKey(), StandardCharsets.UTF_8).putChar('=')
+                    .putString(env.getValue(), StandardCharsets.UTF_8).putChar('\0');
+        }
+        return hasher.hash().asLong();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the cached output for the given input, or null if there is none.
+     */
+    public synchronized String get(final String input) {
+        if (closed) {
+            return null;
+        }
+        try {
+            ensureCurrent();
+            return lookup(input, input.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Maxima result cache lookup failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the output for the given input. Results too large to be worth keeping are ignored.
+     */
+    public synchronized void put(final String input, final String output) {
+        if (closed) {
+            return;
+        }
+        final byte[] inputBytes = input.getBytes(StandardCharsets.UTF_8);
+        final byte[] outputBytes = output.getBytes(StandardCharsets.UTF_8);
+        final int recordSize = RECORD_HEADER_SIZE + inputBytes.length + outputBytes.length;
+        if (recordSize > (capacity - HEADER_SIZE) / 16) {
+            return;
+        }
+        try {
+            FileLock lock = channel.lock();
+            try {
+                if (isRetired()) {
+                    lock.release();
+                    reopen();
+                    lock = channel.lock();
+                }
+                int end = log.getInt(END_OFFSET);
+                if (end + recordSize > capacity) {
+                    if (!compactable) {
+                        return;
+                    }
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        compactable = false;
+                        LOG.warn("Could not compact Maxima result cache {}, leaving it full until it is reopened", file, e);
+                        return;
+                    }
+                    lock.release();
+                    reopen();
+                    lock = channel.lock();
+                    end = log.getInt(END_OFFSET);
+                    if (end + recordSize > capacity) {
+                        return;
+                    }
+                }
+                log.position(end);
+                log.putInt(inputBytes.length).putInt(outputBytes.length).put(inputBytes).put(outputBytes);
+                /* (Publish the record only once it has been written in full) */
+                log.putInt(END_OFFSET, end + recordSize);
+            } finally {
+                if (lock.isValid()) {
+                    lock.release();
+                }
+            }
+            indexUpTo(log.getInt(END_OFFSET));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Maxima result cache update failed", e);
+        }
+    }
+
+    /**
+     * Returns the number of results currently indexed by this instance.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            closeFile();
+        }
+    }
+
+    private String lookup(final String input, final byte[] inputBytes) {
+        final Integer offset = index.get(hash(input));
+        if (offset == null) {
+            return null;
+        }
+        final int inputLength = log.getInt(offset);
+        final int outputLength = log.getInt(offset + 4);
+        if (inputLength != inputBytes.length) {
+            return null;
+        }
+        if (!Arrays.equals(readBytes(offset + RECORD_HEADER_SIZE, inputLength), inputBytes)) {
+            /* (Hash collision) */
+            return null;
+        }
+        return new String(readBytes(offset + RECORD_HEADER_SIZE + inputLength, outputLength), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Switches to the current log file if ours has been retired, and indexes any records
+     * published by other JVMs since we last looked.
+     */
+    private void ensureCurrent() throws IOException {
+        if (isRetired()) {
+            reopen();
+        }
+        indexUpTo(log.getInt(END_OFFSET));
+    }
+
+    private boolean isRetired() {
+        return log.getInt(RETIRED_OFFSET) != 0;
+    }
+
+    private void indexUpTo(final int end) {
+        int offset = indexedEnd;
+        while (offset < end) {
+            final int inputLength = log.getInt(offset);
+            final int outputLength = log.getInt(offset + 4);
+            index.put(hash(new String(readBytes(offset + RECORD_HEADER_SIZE, inputLength), StandardCharsets.UTF_8)), offset);
+            offset += RECORD_HEADER_SIZE + inputLength + outputLength;
+        }
+        indexedEnd = offset;
+    }
+
+    /**
+     * Writes the newest records that fit in half the capacity to a new log file, which then
+     * replaces the current one. (Must be called with the file lock held.)
+     */
+    private void compact() throws IOException {
+        indexUpTo(log.getInt(END_OFFSET));
+        final List<Integer> offsets = Lists.newArrayList(index.values());
+        Collections.sort(offsets, Collections.reverseOrder());
+        final List<Integer> kept = Lists.newArrayList();
+        int keptSize = HEADER_SIZE;
+        for (final int offset : offsets) {
+            final int recordSize = RECORD_HEADER_SIZE + log.getInt(offset) + log.getInt(offset + 4);
+            if (keptSize + recordSize > maxBytes / 2) {
+                break;
+            }
+            kept.add(offset);
+            keptSize += recordSize;
+        }
+        Collections.reverse(kept);
+
+        final File compacted = new File(file.getPath() + ".compact");
+        try (RandomAccessFile target = new RandomAccessFile(compacted, "rw")) {
+            target.setLength(0);
+            target.setLength(maxBytes);
+            final MappedByteBuffer targetLog = target.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+            writeHeader(targetLog);
+            targetLog.position(HEADER_SIZE);
+            for (final int offset : kept) {
+                targetLog.put(readBytes(offset, RECORD_HEADER_SIZE + log.getInt(offset) + log.getInt(offset + 4)));
+            }
+            targetLog.putInt(END_OFFSET, keptSize);
+            targetLog.force();
+        }
+        try {
+            /* (Other JVMs may still have the current file mapped, which only some platforms allow replacing) */
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(compacted.toPath());
+            throw e;
+        }
+        log.putInt(RETIRED_OFFSET, 1);
+        LOG.info("Compacted Maxima result cache {} from {} to {} results", file, offsets.size(), kept.size());
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        final FileLock lock = channel.lock();
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                randomAccessFile.setLength(maxBytes);
+                log = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+                writeHeader(log);
+                log.putInt(END_OFFSET, HEADER_SIZE);
+            } else {
+                log = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                if (log.getInt(MAGIC_OFFSET) != MAGIC || log.getInt(VERSION_OFFSET) != FORMAT_VERSION
+                        || log.getLong(FINGERPRINT_OFFSET) != fingerprint) {
+                    throw new IOException("Not a Maxima result cache for this setup: " + file);
+                }
+            }
+        } finally {
+            lock.release();
+        }
+        capacity = log.capacity();
+        compactable = true;
+        index.clear();
+        indexedEnd = HEADER_SIZE;
+        indexUpTo(log.getInt(END_OFFSET));
+        LOG.debug("Opened Maxima result cache {} with {} results", file, index.size());
+    }
+
+    private void reopen() throws IOException {
+        closeFile();
+        open();
+    }
+
+    private void closeFile() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            LOG.error(e);
+        }
+    }
+
+    private byte[] readBytes(final int offset, final int length) {
+        final ByteBuffer view = log.duplicate();
+        view.position(offset);
+        final byte[] bytes = new byte[length];
+        view.get(bytes);
+        return bytes;
+    }
+
+    private void writeHeader(final MappedByteBuffer target) {
+        target.putInt(MAGIC_OFFSET, MAGIC);
+        target.putInt(VERSION_OFFSET, FORMAT_VERSION);
+        target.putLong(FINGERPRINT_OFFSET, fingerprint);
+        target.putInt(RETIRED_OFFSET, 0);
+    }
+
+    private static long hash(final String input) {
+        return Hashing.murmur3_128().hashString(input, StandardCharsets.UTF_8).asLong();
+    }
+}
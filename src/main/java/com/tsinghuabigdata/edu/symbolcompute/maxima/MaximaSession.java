@@ -0,0 +1,273 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lightweight handle on a logical, stateful Maxima session, as created using
+ * {@link MaximaSessionManager#openSession()}.
+ * <p/>
+ * While active, a session is pinned to one process borrowed from the manager's
+ * {@link MaximaProcessPool}, so definitions made by earlier calls are visible to later
+ * ones. Once idle for longer than the manager's idle timeout, the process is soft reset
+ * and handed back to the pool; what happens next depends on the
+ * {@link MaximaSessionManager.IdlePolicy}. The same goes for a process lost because a
+ * call timed out (it is terminated, as it may still be busy) or failed.
+ * <p/>
+ * With {@link MaximaSessionManager.IdlePolicy#REPLAY}, a session whose journal has grown
+ * beyond the manager's maximum journal length is closed instead the next time it loses
+ * its process, as its state can't be rebuilt any more. Sessions unused for
+ * longer than the manager's session timeout are closed.
+ * <p/>
+ * Call {@link #close()} once finished with the session. An instance of this class is
+ * thread-safe, but calls on one session are executed one at a time.
+ *
+ * @author tengyt
+ */
+public class MaximaSession {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaSession.class);
+
+    private final MaximaSessionManager manager;
+    private final String id;
+    private final ReentrantLock lock;
+
+    /**
+     * State-changing inputs made so far, replayed when the session is pinned to a new process
+     * (only kept with {@link MaximaSessionManager.IdlePolicy#REPLAY})
+     */
+    private final List<String> journal;
+
+    /**
+     * Total length of the inputs in {@link #journal}
+     */
+    private int journalLength;
+
+    /**
+     * Whether state-changing inputs have been left out of the journal because it was full
+     */
+    private boolean journalOverflowed;
+
+    /**
+     * Process currently pinned to this session, null while released
+     */
+    private volatile MaximaInteractiveProcess process;
+
+    private volatile long lastUsed;
+    private volatile boolean closed;
+
+    MaximaSession(final MaximaSessionManager manager, final String id) {
+        this.manager = manager;
+        this.id = id;
+        this.lock = new ReentrantLock();
+        this.journal = Lists.newArrayList();
+        this.lastUsed = System.nanoTime();
+        this.closed = false;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Executes the given Maxima code within this session, using the default call timeout.
+     *
+     * @see MaximaInteractiveProcess#executeCall(String)
+     */
+    public String executeCall(final String maximaInput) throws IOException, InterruptedException {
+        return executeCall(maximaInput, 0);
+    }
+
+    /**
+     * Executes the given Maxima code within this session.
+     *
+     * @param callTimeout timeout in seconds, or zero to use the process default
+     * @throws IllegalStateException if the session has been closed or expired, if no process
+     *                               could be obtained from the pool in time, or if the session's
+     *                               state could not be replayed onto a new process
+     * @see MaximaInteractiveProcess#executeCall(String, int)
+     */
+    public String executeCall(final String maximaInput, final int callTimeout) throws IOException, InterruptedException {
+        Preconditions.checkNotNull(maximaInput, "maximaInput");
+        lock.lock();
+        try {
+            ensureNotClosed();
+            final MaximaInteractiveProcess pinned = ensurePinned();
+            final String output = callTimeout != 0 ? pinned.executeCall(maximaInput, callTimeout) : pinned.executeCall(maximaInput);
+            if (pinned.lastCallTimedOut()) {
+                /* (Its late output would be read by the next call. The call itself is not
+                 * journaled, as its effects are lost with the process.) */
+                LOG.debug("Call in Maxima session {} timed out, terminating its process", id);
+                pinned.terminate();
+            } else if (manager.getIdlePolicy() == MaximaSessionManager.IdlePolicy.REPLAY && MaximaInputs.isStateChanging(maximaInput)) {
+                record(maximaInput);
+            }
+            if (pinned.isTerminated()) {
+                /* (The pool will replace the dead process; we'll replay onto a new one next time) */
+                releaseProcess(false);
+                if (manager.getIdlePolicy() == MaximaSessionManager.IdlePolicy.RESET || journalOverflowed) {
+                    closeUnpinned();
+                }
+            }
+            return output;
+        } finally {
+            lastUsed = System.nanoTime();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether this session is currently pinned to a process.
+     */
+    public boolean isPinned() {
+        return process != null;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes this session, soft resetting and releasing its process.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (!closed) {
+                releaseProcess(true);
+                closeUnpinned();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called periodically by the manager. Releases the pinned process if this session has
+     * been idle for longer than the given time, without waiting on a call in progress.
+     *
+     * @return true if the session has been closed as a result
+     */
+    boolean releaseIfIdle(final long idleNanos) {
+        if (process == null || System.nanoTime() - lastUsed < idleNanos || !lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (process == null || System.nanoTime() - lastUsed < idleNanos) {
+                return false;
+            }
+            LOG.debug("Releasing process of idle Maxima session {}", id);
+            releaseProcess(true);
+            if (manager.getIdlePolicy() == MaximaSessionManager.IdlePolicy.RESET || journalOverflowed) {
+                closeUnpinned();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called periodically by the manager. Closes this session if it has not been used for
+     * longer than the given time, without waiting on a call in progress.
+     *
+     * @return true if the session has been closed as a result
+     */
+    boolean closeIfExpired(final long expiryNanos) {
+        if (closed || System.nanoTime() - lastUsed < expiryNanos || !lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (closed || System.nanoTime() - lastUsed < expiryNanos) {
+                return false;
+            }
+            LOG.debug("Closing expired Maxima session {}", id);
+            releaseProcess(true);
+            closeUnpinned();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a state-changing input to the journal, unless that would make it too long.
+     */
+    private void record(final String maximaInput) {
+        if (journalOverflowed) {
+            return;
+        }
+        if (journalLength + maximaInput.length() > manager.getMaxJournalLength()) {
+            LOG.warn("Journal of Maxima session {} is full, closing the session once it loses its process", id);
+            journalOverflowed = true;
+            journal.clear();
+            journalLength = 0;
+            return;
+        }
+        journal.add(maximaInput);
+        journalLength += maximaInput.length();
+    }
+
+    private void closeUnpinned() {
+        closed = true;
+        journal.clear();
+        journalLength = 0;
+        manager.removeSession(this);
+    }
+
+    private MaximaInteractiveProcess ensurePinned() throws IOException, InterruptedException {
+        if (process != null) {
+            return process;
+        }
+        final MaximaInteractiveProcess borrowed = manager.getPool().borrowProcess(manager.getBorrowTimeout(), TimeUnit.SECONDS);
+        if (borrowed == null) {
+            throw new IllegalStateException("No Maxima process became available for session " + id);
+        }
+        process = borrowed;
+        if (!journal.isEmpty()) {
+            LOG.debug("Replaying {} definitions of Maxima session {}", journal.size(), id);
+            for (final String maximaInput : journal) {
+                borrowed.executeCallDiscardOutput(maximaInput);
+                if (borrowed.lastCallTimedOut()) {
+                    borrowed.terminate();
+                }
+                if (borrowed.isTerminated()) {
+                    releaseProcess(false);
+                    throw new IllegalStateException("Maxima process died or timed out while replaying session " + id);
+                }
+            }
+        }
+        return borrowed;
+    }
+
+    private void releaseProcess(final boolean reset) {
+        if (process == null) {
+            return;
+        }
+        final MaximaInteractiveProcess released = process;
+        if (reset && !released.isTerminated()) {
+            try {
+                released.softReset();
+            } catch (RuntimeException e) {
+                LOG.warn("Soft reset of session process failed, terminating it", e);
+                released.terminate();
+            }
+        }
+        process = null;
+        manager.getPool().returnProcess(released);
+    }
+
+    private void ensureNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Maxima session " + id + " has been closed");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps many logical {@link MaximaSession}s onto the processes of a {@link MaximaProcessPool}.
+ * <p/>
+ * A session only holds a process while it is in use; a background sweep releases the
+ * processes of sessions idle for longer than the idle timeout, and closes sessions unused
+ * for longer than the session timeout. At most a given number of sessions may be open at
+ * once.
+ * <p/>
+ * An instance of this class is thread-safe. Call {@link #close()} once finished with it.
+ *
+ * @author tengyt
+ */
+public class MaximaSessionManager {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaSessionManager.class);
+
+    /**
+     * Default number of seconds a session waits for a free pooled process
+     */
+    public static final int DEFAULT_BORROW_TIMEOUT = 10;
+
+    /**
+     * Default number of seconds after which an unused session is closed
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+    /**
+     * Default maximum number of open sessions
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 10000;
+
+    /**
+     * Default maximum total length of the inputs journaled by a session with
+     * {@link IdlePolicy#REPLAY}
+     */
+    public static final int DEFAULT_MAX_JOURNAL_LENGTH = 1024 * 1024;
+
+    /**
+     * What happens to a session once its process is released for idleness, or lost because
+     * a call timed out or failed.
+     */
+    public enum IdlePolicy {
+
+        /**
+         * The session's state is discarded and the session is closed.
+         */
+        RESET,
+
+        /**
+         * State-changing inputs are recorded as they are made, and replayed onto whichever
+         * process the session gets pinned to next, so the session carries on transparently.
+         */
+        REPLAY
+    }
+
+    private final MaximaProcessPool pool;
+    private final IdlePolicy idlePolicy;
+    private final long idleNanos;
+    private final int borrowTimeout;
+    private final long sessionNanos;
+    private final int maxSessions;
+    private final int maxJournalLength;
+    private final ConcurrentMap<String, MaximaSession> sessions;
+    private final ScheduledExecutorService sweeper;
+
+    public MaximaSessionManager(final MaximaProcessPool pool, final int idleTimeout, final IdlePolicy idlePolicy) {
+        this(pool, idleTimeout, idlePolicy, DEFAULT_BORROW_TIMEOUT);
+    }
+
+    /**
+     * @param idleTimeout   number of seconds after which an unused session releases its process
+     * @param borrowTimeout number of seconds a session waits for a free process
+     */
+    public MaximaSessionManager(final MaximaProcessPool pool, final int idleTimeout, final IdlePolicy idlePolicy,
+                                final int borrowTimeout) {
+        this(pool, idleTimeout, idlePolicy, borrowTimeout, DEFAULT_SESSION_TIMEOUT, DEFAULT_MAX_SESSIONS,
+                DEFAULT_MAX_JOURNAL_LENGTH);
+    }
+
+    /**
+     * @param idleTimeout      number of seconds after which an unused session releases its process
+     * @param borrowTimeout    number of seconds a session waits for a free process
+     * @param sessionTimeout   number of seconds after which an unused session is closed
+     * @param maxSessions      maximum number of open sessions
+     * @param maxJournalLength maximum total length of the inputs journaled by a session with
+     *                         {@link IdlePolicy#REPLAY}
+     */
+    public MaximaSessionManager(final MaximaProcessPool pool, final int idleTimeout, final IdlePolicy idlePolicy,
+                                final int borrowTimeout, final int sessionTimeout, final int maxSessions,
+                                final int maxJournalLength) {
+        Preconditions.checkNotNull(pool, "MaximaProcessPool");
+        Preconditions.checkNotNull(idlePolicy, "IdlePolicy");
+        Preconditions.checkArgument(idleTimeout > 0, "idleTimeout must be positive");
+        Preconditions.checkArgument(sessionTimeout > 0, "sessionTimeout must be positive");
+        Preconditions.checkArgument(maxSessions > 0, "maxSessions must be positive");
+        this.pool = pool;
+        this.idlePolicy = idlePolicy;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleTimeout);
+        this.borrowTimeout = borrowTimeout;
+        this.sessionNanos = TimeUnit.SECONDS.toNanos(sessionTimeout);
+        this.maxSessions = maxSessions;
+        this.maxJournalLength = maxJournalLength;
+        this.sessions = new ConcurrentHashMap<>();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "maxima-session-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long sweepMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(Math.min(idleNanos, sessionNanos)) / 2, 100);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sweepIdleSessions();
+            }
+        }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a new session. No process is pinned to it until its first call.
+     *
+     * @throws IllegalStateException if the maximum number of sessions are open
+     */
+    public MaximaSession openSession() {
+        if (sessions.size() >= maxSessions) {
+            throw new IllegalStateException("Too many open Maxima sessions: " + sessions.size());
+        }
+        final MaximaSession session = new MaximaSession(this, UUID.randomUUID().toString());
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    /**
+     * Looks up an open session by id.
+     *
+     * @return the session, or null if there is no open session with this id
+     */
+    public MaximaSession getSession(final String id) {
+        return sessions.get(id);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Closes all sessions. The underlying pool is left open.
+     */
+    public void close() {
+        sweeper.shutdownNow();
+        for (final MaximaSession session : Lists.newArrayList(sessions.values())) {
+            session.close();
+        }
+    }
+
+    MaximaProcessPool getPool() {
+        return pool;
+    }
+
+    IdlePolicy getIdlePolicy() {
+        return idlePolicy;
+    }
+
+    int getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    int getMaxJournalLength() {
+        return maxJournalLength;
+    }
+
+    void removeSession(final MaximaSession session) {
+        sessions.remove(session.getId(), session);
+    }
+
+    private void sweepIdleSessions() {
+        for (final MaximaSession session : sessions.values()) {
+            try {
+                if (session.releaseIfIdle(idleNanos) || session.closeIfExpired(sessionNanos)) {
+                    LOG.debug("Closed idle Maxima session {}", session.getId());
+                    removeSession(session);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to release idle Maxima session", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MaximaEventListener} logging the full input of a sample of the calls that take
+ * longer than a threshold (including calls that time out), so that latency spikes can
+ * be traced back to the expressions causing them.
+ *
+ * @author tengyt
+ */
+public class MaximaSlowCallLog implements MaximaEventListener {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaSlowCallLog.class);
+
+    public static final double DEFAULT_SAMPLE_RATE = 1.0;
+
+    private final long thresholdNanos;
+    private final double sampleRate;
+
+    /**
+     * @param thresholdMillis calls taking at least this long are considered slow
+     * @param sampleRate      fraction of the slow calls to log, between 0 and 1
+     */
+    public MaximaSlowCallLog(final long thresholdMillis, final double sampleRate) {
+        Preconditions.checkArgument(thresholdMillis > 0, "thresholdMillis must be positive");
+        Preconditions.checkArgument(sampleRate > 0 && sampleRate <= 1, "sampleRate must be in (0, 1]");
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public void onEvent(final MaximaEvent event) {
+        if (event.getInput() == null || event.getDurationNanos() < thresholdNanos) {
+            return;
+        }
+        if (event.getType() != MaximaEvent.Type.CALL_FINISHED && event.getType() != MaximaEvent.Type.CALL_TIMED_OUT
+                && event.getType() != MaximaEvent.Type.CALL_FAILED) {
+            return;
+        }
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        LOG.warn("Slow Maxima call ({}, {}ms, {} output chars): {}", event.getType(),
+                event.getDuration(TimeUnit.MILLISECONDS), event.getOutputLength(), event.getInput());
+    }
+}
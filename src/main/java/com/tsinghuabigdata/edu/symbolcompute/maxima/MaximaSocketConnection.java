@@ -0,0 +1,296 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One Maxima client connection accepted by a {@link MaximaSocketTransport}.
+ * <p/>
+ * All channel I/O is done by the transport's selector thread; this buffers inbound data
+ * (up to {@link #MAX_INBOUND_BYTES}) and queues outbound data, and exposes them as
+ * blocking streams so that {@link MaximaProcessController} can use a connection exactly
+ * like process pipes.
+ *
+ * @author tengyt
+ */
+final class MaximaSocketConnection {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaSocketConnection.class);
+
+    /**
+     * Maximum amount of inbound data buffered before the connection is closed, e.g. when
+     * output keeps arriving that nobody reads
+     */
+    static final int MAX_INBOUND_BYTES = 64 * 1024 * 1024;
+
+    private final MaximaSocketTransport transport;
+    private final SocketChannel channel;
+
+    /**
+     * Guards all the buffers below, and is notified whenever they change
+     */
+    private final Object lock = new Object();
+
+    private byte[] inbound = new byte[8192];
+    private int inboundStart;
+    private int inboundEnd;
+    private boolean endOfInput;
+
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private boolean closed;
+
+    private SelectionKey selectionKey;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            synchronized (lock) {
+                while (inboundStart == inboundEnd && !endOfInput) {
+                    awaitChange();
+                }
+                if (inboundStart == inboundEnd) {
+                    return -1;
+                }
+                final int count = Math.min(length, inboundEnd - inboundStart);
+                System.arraycopy(inbound, inboundStart, buffer, offset, count);
+                inboundStart += count;
+                return count;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (lock) {
+                return inboundEnd - inboundStart;
+            }
+        }
+
+        @Override
+        public void close() {
+            MaximaSocketConnection.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+            synchronized (lock) {
+                ensureOpen();
+                outbound.add(ByteBuffer.wrap(Arrays.copyOfRange(buffer, offset, offset + length)));
+            }
+            transport.requestWrite(MaximaSocketConnection.this);
+        }
+
+        /**
+         * Waits until everything written so far has been handed to the socket.
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (lock) {
+                while (!outbound.isEmpty()) {
+                    ensureOpen();
+                    awaitChange();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            MaximaSocketConnection.this.close();
+        }
+    };
+
+    MaximaSocketConnection(final MaximaSocketTransport transport, final SocketChannel channel) {
+        this.transport = transport;
+        this.channel = channel;
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reads the next line of input (without its line terminator).
+     *
+     * @return the line, or null if no complete line arrived within the given time or the
+     * connection was closed
+     */
+    String readLine(final long timeoutMillis) throws InterruptedIOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (lock) {
+            while (true) {
+                for (int i = inboundStart; i < inboundEnd; i++) {
+                    if (inbound[i] == '\n') {
+                        final String line = new String(inbound, inboundStart, i - inboundStart, StandardCharsets.UTF_8);
+                        inboundStart = i + 1;
+                        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+                    }
+                }
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (endOfInput || remaining <= 0) {
+                    return null;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting on Maxima socket");
+                }
+            }
+        }
+    }
+
+    void setSelectionKey(final SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Closes the connection, which makes Maxima exit as it sees the end of its input.
+     */
+    void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            endOfInput = true;
+            outbound.clear();
+            lock.notifyAll();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error(e);
+        }
+    }
+
+    /* (Selector thread only) */
+    void onReadable(final ByteBuffer readBuffer) {
+        try {
+            readBuffer.clear();
+            final int read = channel.read(readBuffer);
+            if (read == -1) {
+                LOG.debug("Maxima closed its socket connection");
+                close();
+                return;
+            }
+            readBuffer.flip();
+            synchronized (lock) {
+                if (inboundEnd - inboundStart + readBuffer.remaining() > MAX_INBOUND_BYTES) {
+                    LOG.warn("More than {} bytes of unread output from Maxima; closing its socket connection",
+                            MAX_INBOUND_BYTES);
+                    inbound = new byte[0];
+                    inboundStart = 0;
+                    inboundEnd = 0;
+                } else {
+                    append(readBuffer);
+                    lock.notifyAll();
+                    return;
+                }
+            }
+            close();
+        } catch (IOException e) {
+            LOG.debug("Reading from Maxima socket failed", e);
+            close();
+        }
+    }
+
+    /* (Selector thread only) */
+    void onWritable() {
+        try {
+            synchronized (lock) {
+                while (!outbound.isEmpty()) {
+                    final ByteBuffer head = outbound.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        return;
+                    }
+                    outbound.poll();
+                }
+                selectionKey.interestOps(SelectionKey.OP_READ);
+                lock.notifyAll();
+            }
+        } catch (IOException e) {
+            LOG.debug("Writing to Maxima socket failed", e);
+            close();
+        }
+    }
+
+    /* (Selector thread only) */
+    void enableWrites() {
+        try {
+            if (selectionKey != null && selectionKey.isValid()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (CancelledKeyException e) {
+            close();
+        }
+    }
+
+    private void append(final ByteBuffer data) {
+        final int length = data.remaining();
+        if (inboundEnd + length > inbound.length) {
+            final int buffered = inboundEnd - inboundStart;
+            if (buffered + length > inbound.length) {
+                inbound = Arrays.copyOfRange(inbound, inboundStart, inboundStart + Math.max(inbound.length * 2, buffered + length));
+            } else {
+                System.arraycopy(inbound, inboundStart, inbound, 0, buffered);
+            }
+            inboundStart = 0;
+            inboundEnd = buffered;
+        }
+        data.get(inbound, inboundEnd, length);
+        inboundEnd += length;
+    }
+
+    private void awaitChange() throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on Maxima socket");
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Maxima socket connection closed");
+        }
+    }
+}
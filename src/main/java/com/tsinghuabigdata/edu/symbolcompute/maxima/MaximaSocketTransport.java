@@ -0,0 +1,311 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Socket transport for Maxima's client-server mode, where Maxima is started with
+ * <tt>-s &lt;port&gt;</tt> and connects back to us instead of using its STDIN/STDOUT.
+ * <p/>
+ * This listens on a local {@link ServerSocketChannel}, and a single selector thread does
+ * the I/O for every connected Maxima.
+ * <p/>
+ * Processes may connect in any order, so each new connection is first asked for the
+ * token its process was started with (in the {@link #TOKEN_VARIABLE} environment
+ * variable), and is then handed out by {@link #accept(String, long, TimeUnit)} to
+ * whoever launched that process. Maxima servers started independently of this JVM
+ * against a fixed port have no token, and are handed out in the order they connect to
+ * callers asking for no token.
+ * <p/>
+ * An instance of this class is thread-safe. Call {@link #close()} once finished with it.
+ *
+ * @author tengyt
+ */
+public class MaximaSocketTransport {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaSocketTransport.class);
+
+    /**
+     * Environment variable passed to each launched Maxima, holding the token that
+     * identifies its connection
+     */
+    static final String TOKEN_VARIABLE = "JACOMAX_TOKEN";
+
+    /**
+     * Prefix of Maxima's answer to {@link #IDENTIFY_PROBE}
+     */
+    private static final String TOKEN_PREFIX = "jacomax-token=";
+
+    /**
+     * Asks Maxima for its token. (The prefix is printed in two parts so that it can't be
+     * mistaken for an echo of this input.)
+     */
+    private static final String IDENTIFY_PROBE = ":lisp (progn (princ \"jacomax-\") (princ \"token=\")"
+            + " (princ (or (ignore-errors (maxima::maxima-getenv \"" + TOKEN_VARIABLE + "\")) \"\")) (terpri) (values))\n";
+
+    /**
+     * Maximum time for a new connection to answer {@link #IDENTIFY_PROBE}
+     */
+    private static final long IDENTIFY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Queue<MaximaSocketConnection> pendingWrites;
+    private final Thread selectorThread;
+    private final ExecutorService identifyExecutor;
+    private volatile boolean closed;
+
+    /* The following are guarded by connectionLock, which is notified whenever they change */
+    private final Object connectionLock = new Object();
+    private final Map<String, MaximaSocketConnection> identifiedConnections = new HashMap<>();
+    private final Queue<MaximaSocketConnection> anonymousConnections = new ArrayDeque<>();
+
+    /**
+     * Tokens nobody waits for any more, with the time (from {@link System#nanoTime()}) they
+     * are forgotten
+     */
+    private final Map<String, Long> abandonedTokens = new HashMap<>();
+
+    /**
+     * Binds a new transport to the given local port (0 picks a free one).
+     */
+    public MaximaSocketTransport(final int port) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.selectorThread = new Thread(new Runnable() {
+            public void run() {
+                selectLoop();
+            }
+        }, "maxima-socket-selector");
+        selectorThread.setDaemon(true);
+        this.identifyExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "maxima-socket-identify");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        selectorThread.start();
+        LOG.debug("Maxima socket transport listening on port {}", getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Waits for the Maxima started with the given token to connect. If none arrives in
+     * time, its connection is closed should it arrive within the same time again.
+     *
+     * @param token token passed in {@link #TOKEN_VARIABLE}, or null to wait for the next
+     *              Maxima started without one
+     * @return the new connection, or null if none arrived in time
+     */
+    MaximaSocketConnection accept(final String token, final long timeout, final TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        synchronized (connectionLock) {
+            while (true) {
+                final MaximaSocketConnection connection = token != null
+                        ? identifiedConnections.remove(token) : anonymousConnections.poll();
+                if (connection != null) {
+                    return connection;
+                }
+                if (remaining <= 0 || closed) {
+                    if (token != null) {
+                        abandon(token, unit.toNanos(timeout));
+                    }
+                    return null;
+                }
+                final long waitStart = System.nanoTime();
+                TimeUnit.NANOSECONDS.timedWait(connectionLock, remaining);
+                remaining -= System.nanoTime() - waitStart;
+            }
+        }
+    }
+
+    /**
+     * Remembers that nobody waits for the given token any more, so that its connection gets
+     * closed should it arrive within the same time again, and forgets tokens abandoned
+     * longer ago. (Must be called holding connectionLock.)
+     */
+    private void abandon(final String token, final long timeoutNanos) {
+        final long now = System.nanoTime();
+        final Iterator<Long> expiries = abandonedTokens.values().iterator();
+        while (expiries.hasNext()) {
+            if (expiries.next() - now <= 0) {
+                expiries.remove();
+            }
+        }
+        abandonedTokens.put(token, now + timeoutNanos);
+    }
+
+    /**
+     * Stops listening and drops all connections.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        identifyExecutor.shutdownNow();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void requestWrite(final MaximaSocketConnection connection) {
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    private void selectLoop() {
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!closed) {
+                selector.select();
+                MaximaSocketConnection writer;
+                while ((writer = pendingWrites.poll()) != null) {
+                    writer.enableWrites();
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnection();
+                        continue;
+                    }
+                    final MaximaSocketConnection connection = (MaximaSocketConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        /* (Connection closed by another thread in the meantime) */
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Maxima socket selector failed", e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void acceptConnection() {
+        try {
+            final SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final MaximaSocketConnection connection = new MaximaSocketConnection(this, channel);
+            connection.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            LOG.debug("Accepted Maxima connection from {}", channel.socket().getRemoteSocketAddress());
+            identifyExecutor.execute(new Runnable() {
+                public void run() {
+                    identify(connection);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Failed to accept Maxima connection", e);
+        }
+    }
+
+    /**
+     * Asks a new connection for its token and makes it available to {@link #accept(String, long, TimeUnit)}.
+     * Any startup output read along the way is discarded.
+     */
+    private void identify(final MaximaSocketConnection connection) {
+        String token = null;
+        try {
+            final OutputStream output = connection.getOutputStream();
+            output.write(IDENTIFY_PROBE.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            final long deadline = System.currentTimeMillis() + IDENTIFY_TIMEOUT_MILLIS;
+            String line;
+            while (token == null && (line = connection.readLine(deadline - System.currentTimeMillis())) != null) {
+                final int prefixIndex = line.indexOf(TOKEN_PREFIX);
+                if (prefixIndex >= 0) {
+                    token = line.substring(prefixIndex + TOKEN_PREFIX.length()).trim();
+                } else {
+                    LOG.trace("MAXIMA<<<(connect): {}", line);
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Failed to identify Maxima connection", e);
+        }
+        if (token == null) {
+            LOG.warn("Maxima connection did not identify itself; closing it");
+            connection.close();
+            return;
+        }
+        synchronized (connectionLock) {
+            if (abandonedTokens.remove(token) != null) {
+                LOG.warn("Maxima connected too late; closing its connection");
+                connection.close();
+            } else if (token.isEmpty()) {
+                anonymousConnections.add(connection);
+            } else {
+                identifiedConnections.put(token, connection);
+            }
+            connectionLock.notifyAll();
+        }
+    }
+
+    private void shutdown() {
+        closed = true;
+        synchronized (connectionLock) {
+            connectionLock.notifyAll();
+        }
+        for (final SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof MaximaSocketConnection) {
+                ((MaximaSocketConnection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            LOG.error(e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Preconditions;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * A fully started Maxima process used as a fork server by {@link MaximaProcessLauncher}
+ * when {@link MaximaConfiguration#isZygote()} is set.
+ * <p/>
+ * On request, the zygote forks itself with <tt>sb-posix:fork</tt>. The child connects
+ * back to the launcher's {@link MaximaSocketTransport} the way <tt>maxima -s</tt> does
+ * and runs its own read-eval-print loop there, while sharing the zygote's heap
+ * copy-on-write. This skips SBCL startup and core loading, so new processes are ready
+ * almost at once and a large pool uses far less memory.
+ * <p/>
+ * This is best effort: it only works with Maxima built on SBCL, with the <tt>sb-posix</tt>
+ * contrib module available, on a POSIX system. Children are reaped by the zygote only when
+ * asked, so that their PIDs can't be reused while we might still kill them.
+ * <p/>
+ * An instance of this class is thread-safe.
+ *
+ * @author tengyt
+ */
+final class MaximaZygote {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaZygote.class);
+
+    /**
+     * Loads <tt>sb-posix</tt>, which must happen before the calls below can be read
+     */
+    private static final String LOAD_SB_POSIX = ":lisp (progn (require :sb-posix) (princ \"ok\") (terpri) (values))";
+
+    /**
+     * Defines the fork and reap functions. A child never returns from the fork call: it runs
+     * Maxima on its socket until that is closed, then exits without unwinding into the
+     * zygote's own read-eval-print loop or flushing the zygote's streams.
+     */
+    private static final String DEFINE_FUNCTIONS = ":lisp (progn"
+            + " (defun maxima-zygote-fork (port token)"
+            + " (finish-output)"
+            + " (let ((pid (sb-posix:fork)))"
+            + " (when (zerop pid)"
+            + " (unwind-protect (progn (sb-posix:setenv \"" + MaximaSocketTransport.TOKEN_VARIABLE + "\" token 1)"
+            + " (maxima::setup-client port \"127.0.0.1\") (maxima::continue)) (sb-ext:exit :abort t)))"
+            + " (princ pid) (terpri) (values)))"
+            + " (defun maxima-zygote-reap (pid kill)"
+            + " (multiple-value-bind (done status) (ignore-errors (sb-posix:waitpid pid sb-posix:wnohang))"
+            + " (cond ((null done) (princ \"x\"))"
+            + " ((plusp done) (princ (if (sb-posix:wifexited status) (sb-posix:wexitstatus status) \"k\")))"
+            + " ((not kill) (princ \"r\"))"
+            + " (t (sb-posix:kill pid 9) (sb-posix:waitpid pid 0) (princ \"k\"))))"
+            + " (terpri) (values))"
+            + " (princ \"ok\") (terpri) (values))";
+
+    /**
+     * Output of {@link #reap(int, boolean)} for a child that is still running
+     */
+    static final int STILL_RUNNING = Integer.MIN_VALUE;
+
+    private final MaximaProcessController controller;
+    private final int callTimeout;
+
+    /**
+     * Turns the Maxima process run by the given (ready) controller into a zygote.
+     *
+     * @param callTimeout timeout for each request made to the zygote
+     * @throws IOException if the process can't fork, e.g. because it isn't running on SBCL
+     */
+    MaximaZygote(final MaximaProcessController controller, final int callTimeout) throws IOException {
+        this.controller = controller;
+        this.callTimeout = callTimeout;
+        for (final String setup : new String[]{LOAD_SB_POSIX, DEFINE_FUNCTIONS}) {
+            final String output = controller.doMaximaCall(setup, callTimeout).trim();
+            if (!"ok".equals(output)) {
+                controller.terminate();
+                throw new IOException("Maxima can't act as a zygote: " + output);
+            }
+        }
+        LOG.debug("Maxima zygote ready");
+    }
+
+    /**
+     * Forks a new Maxima, which will connect to the given local port and identify itself
+     * with the given token (see {@link MaximaSocketTransport#TOKEN_VARIABLE}).
+     *
+     * @param token token made of letters, digits and dashes only
+     * @return PID of the new process
+     */
+    synchronized int fork(final int port, final String token) throws IOException {
+        Preconditions.checkArgument(token.matches("[A-Za-z0-9-]+"), "Unsafe token %s", token);
+        final String output = call(":lisp (maxima-zygote-fork " + port + " \"" + token + "\")");
+        try {
+            return Integer.parseInt(output);
+        } catch (NumberFormatException e) {
+            throw new IOException("Maxima zygote failed to fork: " + output);
+        }
+    }
+
+    /**
+     * Reaps the child with the given PID if it has exited, or else kills it if asked to.
+     *
+     * @return the child's exit value, {@link MaximaInteractiveProcess#PROCESS_FORCIBLY_DESTROYED}
+     * if it had to be killed (or died from a signal), {@link #STILL_RUNNING}, or
+     * {@link MaximaInteractiveProcess#PROCESS_DETACHED} if it isn't a child of this zygote
+     * (e.g. one forked by a previous zygote)
+     */
+    synchronized int reap(final int pid, final boolean kill) throws IOException {
+        final String output = call(":lisp (maxima-zygote-reap " + pid + (kill ? " t)" : " nil)"));
+        if ("r".equals(output)) {
+            return STILL_RUNNING;
+        } else if ("k".equals(output)) {
+            return MaximaInteractiveProcess.PROCESS_FORCIBLY_DESTROYED;
+        } else if ("x".equals(output)) {
+            return MaximaInteractiveProcess.PROCESS_DETACHED;
+        }
+        try {
+            return Integer.parseInt(output);
+        } catch (NumberFormatException e) {
+            throw new IOException("Maxima zygote failed to reap process " + pid + ": " + output);
+        }
+    }
+
+    boolean isAlive() {
+        return !controller.isTerminated();
+    }
+
+    /**
+     * Terminates the zygote. Children carry on until their connections are closed.
+     */
+    void close() {
+        controller.terminate();
+    }
+
+    private String call(final String lispCall) throws IOException {
+        if (controller.isTerminated()) {
+            throw new IOException("Maxima zygote has terminated");
+        }
+        return controller.doMaximaCall(lispCall, callTimeout).trim();
+    }
+}
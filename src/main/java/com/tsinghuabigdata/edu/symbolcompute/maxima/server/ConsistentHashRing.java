@@ -0,0 +1,86 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent hash ring mapping keys onto members, using a number of
+ * virtual points per member to even out the distribution.
+ * <p/>
+ * Adding or removing a member only remaps the keys that hashed onto that member.
+ *
+ * @author tengyt
+ */
+public class ConsistentHashRing<T> {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final NavigableMap<Long, T> ring;
+    private final int memberCount;
+
+    public ConsistentHashRing(final Collection<T> members) {
+        this(members, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(final Collection<T> members, final int virtualNodes) {
+        Preconditions.checkArgument(!members.isEmpty(), "ring must have at least one member");
+        Preconditions.checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+        this.ring = new TreeMap<>();
+        for (final T member : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+        this.memberCount = members.size();
+    }
+
+    /**
+     * Returns the member owning the given key.
+     */
+    public T memberFor(final String key) {
+        final Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Returns all distinct members in ring order starting from the owner of the given key.
+     * The first element is the same as {@link #memberFor(String)}; the others are the
+     * fallbacks to try, in order, when it is unavailable.
+     */
+    public List<T> membersFor(final String key) {
+        final List<T> result = Lists.newArrayListWithCapacity(memberCount);
+        final long hash = hash(key);
+        for (final T member : ring.tailMap(hash, true).values()) {
+            if (!result.contains(member)) {
+                result.add(member);
+                if (result.size() == memberCount) {
+                    return result;
+                }
+            }
+        }
+        for (final T member : ring.headMap(hash, false).values()) {
+            if (!result.contains(member)) {
+                result.add(member);
+                if (result.size() == memberCount) {
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long hash(final String key) {
+        return HASH.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,166 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client spreading Maxima calls over several {@link MaximaServer} nodes.
+ * <p/>
+ * Calls are routed with a {@link ConsistentHashRing} on a caller-supplied session key,
+ * so calls sharing a key land on the same node while it is healthy. A node that cannot
+ * be reached is marked down and skipped until a background health check gets a
+ * ping answered again; the call is retried on the next node along the ring. Nodes
+ * answering "busy" are also skipped for that call. Calls are only retried elsewhere when
+ * they could not be sent at all: a call that times out or whose connection breaks after
+ * sending is not, as the node may have run it and the call may not be idempotent.
+ * <p/>
+ * An instance of this class is thread-safe. Call {@link #close()} once finished with it.
+ *
+ * @author tengyt
+ */
+public class MaximaClusterClient {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaClusterClient.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 5;
+
+    /**
+     * Extra time allowed on top of the Maxima call timeout before a node is deemed unresponsive
+     */
+    private static final int READ_TIMEOUT_SLACK_MILLIS = 5000;
+
+    private final List<MaximaServerNode> nodes;
+    private final ConsistentHashRing<MaximaServerNode> ring;
+    private final int healthCheckInterval;
+    private final ScheduledExecutorService healthChecker;
+
+    public MaximaClusterClient(final List<InetSocketAddress> serverAddresses) {
+        this(serverAddresses, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_HEALTH_CHECK_INTERVAL);
+    }
+
+    /**
+     * @param connectTimeoutMillis timeout when opening a connection to a node
+     * @param healthCheckInterval  number of seconds between health checks of nodes marked down,
+     *                             which is also the minimum time a failed node is skipped for
+     */
+    public MaximaClusterClient(final List<InetSocketAddress> serverAddresses, final int connectTimeoutMillis,
+                               final int healthCheckInterval) {
+        Preconditions.checkArgument(!serverAddresses.isEmpty(), "at least one server address is required");
+        Preconditions.checkArgument(healthCheckInterval > 0, "healthCheckInterval must be positive");
+        this.nodes = Lists.newArrayListWithCapacity(serverAddresses.size());
+        for (final InetSocketAddress address : serverAddresses) {
+            nodes.add(new MaximaServerNode(address, connectTimeoutMillis));
+        }
+        this.ring = new ConsistentHashRing<>(nodes);
+        this.healthCheckInterval = healthCheckInterval;
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "maxima-cluster-health");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkDownNodes();
+            }
+        }, healthCheckInterval, healthCheckInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Executes the given call on the node owning the given session key, falling back to
+     * the following nodes on the ring if it is down or busy.
+     *
+     * @param sessionKey  routing key; calls with equal keys go to the same node when possible
+     * @param maximaInput Maxima code to call, as for
+     *                    {@link com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaInteractiveProcess#executeCall(String, int)}
+     * @param callTimeout timeout passed on to the server-side call
+     * @return raw Maxima output
+     * @throws SocketTimeoutException if the node serving the call did not answer in time
+     * @throws IOException            if no node could serve the call, or the connection to the
+     *                                node serving it broke
+     */
+    public String executeCall(final String sessionKey, final String maximaInput, final int callTimeout) throws IOException {
+        Preconditions.checkNotNull(sessionKey, "sessionKey");
+        Preconditions.checkNotNull(maximaInput, "maximaInput");
+        final int readTimeoutMillis = Math.max(callTimeout, 0) * 1000 + READ_TIMEOUT_SLACK_MILLIS;
+        final List<MaximaServerNode> candidates = ring.membersFor(sessionKey);
+        IOException lastFailure = null;
+        for (int pass = 0; pass < 2; pass++) {
+            /* First pass only tries healthy nodes; the second one gives down nodes a last chance */
+            for (final MaximaServerNode node : candidates) {
+                if (node.isHealthy() != (pass == 0)) {
+                    continue;
+                }
+                try {
+                    final MaximaServerNode.Response response = node.call(maximaInput, callTimeout, readTimeoutMillis);
+                    node.markUp();
+                    if (response.status == MaximaWireProtocol.STATUS_OK) {
+                        return response.payload;
+                    } else if (response.status == MaximaWireProtocol.STATUS_BUSY) {
+                        LOG.debug("Maxima server {} is busy: {}", node.getAddress(), response.payload);
+                        lastFailure = new IOException("Maxima server " + node.getAddress() + " busy: " + response.payload);
+                    } else {
+                        throw new IllegalStateException("Maxima call failed on " + node.getAddress() + ": " + response.payload);
+                    }
+                } catch (MaximaServerNode.NotSentException e) {
+                    LOG.debug("Maxima call to {} could not be sent, trying next node", node.getAddress());
+                    node.markDown(TimeUnit.SECONDS.toNanos(healthCheckInterval));
+                    lastFailure = e;
+                } catch (SocketTimeoutException e) {
+                    LOG.debug("Maxima call to {} timed out", node.getAddress());
+                    throw e;
+                } catch (IOException e) {
+                    LOG.debug("Maxima call to {} failed after sending", node.getAddress());
+                    node.markDown(TimeUnit.SECONDS.toNanos(healthCheckInterval));
+                    throw e;
+                }
+            }
+        }
+        throw new IOException("No Maxima server could serve the call", lastFailure);
+    }
+
+    /**
+     * Returns the addresses of the nodes currently believed to be healthy.
+     */
+    public List<InetSocketAddress> getHealthyServers() {
+        final List<InetSocketAddress> result = Lists.newArrayList();
+        for (final MaximaServerNode node : nodes) {
+            if (node.isHealthy()) {
+                result.add(node.getAddress());
+            }
+        }
+        return result;
+    }
+
+    public void close() {
+        healthChecker.shutdownNow();
+        for (final MaximaServerNode node : nodes) {
+            node.closeIdleConnections();
+        }
+    }
+
+    private void checkDownNodes() {
+        for (final MaximaServerNode node : nodes) {
+            if (node.isMarkedDown()) {
+                if (node.ping(DEFAULT_CONNECT_TIMEOUT_MILLIS)) {
+                    node.markUp();
+                } else {
+                    node.markDown(TimeUnit.SECONDS.toNanos(healthCheckInterval));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima.server;
+
+import com.google.common.base.Preconditions;
+import com.tsinghuabigdata.common.logging.LogFactory;
+import com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaConfiguration;
+import com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaInteractiveProcess;
+import com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaProcessLauncher;
+import com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaProcessPool;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Standalone evaluation server exposing a local {@link MaximaProcessPool} over the
+ * {@link MaximaWireProtocol} binary protocol, for use with {@link MaximaClusterClient}.
+ * <p/>
+ * Each client connection is served by its own thread and may send any number of
+ * requests, one at a time. Calls borrow a process from the pool for their duration;
+ * if none becomes free within the borrow timeout the server answers
+ * {@link MaximaWireProtocol#STATUS_BUSY} so the client can try another node. Processes
+ * are soft-reset before going back to the pool, so definitions made by one call don't
+ * leak into the next.
+ * <p/>
+ * Note that there is no authentication, and Maxima can run arbitrary commands (e.g. via
+ * <tt>system()</tt> or <tt>:lisp</tt>), so anyone who can connect to the server can run
+ * code as the server's user. It therefore only listens on the loopback interface unless
+ * told otherwise; only bind it to other addresses on a network where every host is trusted.
+ *
+ * @author tengyt
+ */
+public class MaximaServer {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaServer.class);
+
+    /**
+     * Default number of seconds a call waits for a free pooled process
+     */
+    public static final int DEFAULT_BORROW_TIMEOUT = 5;
+
+    /**
+     * Longest time spent reading the request on a connection refused while stopping
+     */
+    private static final int REFUSAL_TIMEOUT_MILLIS = 1000;
+
+    private final MaximaProcessPool pool;
+    private final int borrowTimeout;
+    private final ExecutorService executor;
+    private final AtomicLong callCount;
+    private ServerSocket serverSocket;
+    private volatile boolean stopped;
+
+    public MaximaServer(final MaximaProcessPool pool) {
+        this(pool, DEFAULT_BORROW_TIMEOUT);
+    }
+
+    public MaximaServer(final MaximaProcessPool pool, final int borrowTimeout) {
+        Preconditions.checkNotNull(pool, "MaximaProcessPool");
+        this.pool = pool;
+        this.borrowTimeout = borrowTimeout;
+        this.executor = Executors.newCachedThreadPool();
+        this.callCount = new AtomicLong();
+    }
+
+    /**
+     * Binds the server to the given port (0 picks a free one) on the loopback interface and
+     * starts accepting connections.
+     *
+     * @return the address the server is listening on
+     */
+    public InetSocketAddress start(final int port) throws IOException {
+        return start(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Binds the server to the given address and port (0 picks a free one) and starts
+     * accepting connections. See the class comment before binding to anything but loopback.
+     *
+     * @param bindAddress local address to listen on, or null for all interfaces
+     * @return the address the server is listening on
+     */
+    public synchronized InetSocketAddress start(final InetAddress bindAddress, final int port) throws IOException {
+        Preconditions.checkState(serverSocket == null, "server already started");
+        serverSocket = new ServerSocket(port, 0, bindAddress);
+        final ServerSocket acceptingSocket = serverSocket;
+        executor.execute(new Runnable() {
+            public void run() {
+                acceptLoop(acceptingSocket);
+            }
+        });
+        LOG.info("Maxima server listening on {}", serverSocket.getLocalSocketAddress());
+        return new InetSocketAddress(bindAddress != null && !bindAddress.isAnyLocalAddress()
+                ? bindAddress : InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    /**
+     * Stops accepting connections, drops open ones and closes the underlying pool.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                LOG.error(e);
+            }
+        }
+        executor.shutdownNow();
+        pool.close();
+    }
+
+    /**
+     * Returns the number of calls served so far.
+     */
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    private void acceptLoop(final ServerSocket acceptingSocket) {
+        while (!stopped) {
+            try {
+                final Socket socket = acceptingSocket.accept();
+                socket.setTcpNoDelay(true);
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            serveConnection(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    refuseConnection(socket);
+                }
+            } catch (IOException e) {
+                if (!stopped) {
+                    LOG.error("Failed to accept Maxima client connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers the first request on a connection accepted while the server was stopping as
+     * busy, so that the client sends it to another node, then closes the connection.
+     */
+    private void refuseConnection(final Socket socket) {
+        try {
+            socket.setSoTimeout(REFUSAL_TIMEOUT_MILLIS);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            /* (The request is read first, as closing with unread input would reset the connection) */
+            if (MaximaWireProtocol.readRequestOp(in) == MaximaWireProtocol.OP_CALL) {
+                in.readInt();
+                MaximaWireProtocol.readPayload(in);
+            }
+            MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_BUSY, "server stopping");
+        } catch (IOException e) {
+            LOG.debug("Could not refuse Maxima client connection");
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.error(e);
+            }
+        }
+    }
+
+    private void serveConnection(final Socket socket) {
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (!stopped) {
+                final byte op = MaximaWireProtocol.readRequestOp(in);
+                if (op == MaximaWireProtocol.OP_PING) {
+                    MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_OK, "");
+                } else if (op == MaximaWireProtocol.OP_CALL) {
+                    final int callTimeout = in.readInt();
+                    final String maximaInput = MaximaWireProtocol.readPayload(in);
+                    serveCall(out, maximaInput, callTimeout);
+                } else {
+                    MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_ERROR, "Unknown op " + op);
+                    return;
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            LOG.debug("Maxima client connection closed");
+        } catch (IOException e) {
+            LOG.warn("Dropping Maxima client connection", e);
+        } catch (InterruptedException e) {
+            LOG.debug("Maxima client connection interrupted");
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.error(e);
+            }
+        }
+    }
+
+    private void serveCall(final DataOutputStream out, final String maximaInput, final int callTimeout) throws IOException, InterruptedException {
+        final MaximaInteractiveProcess process;
+        try {
+            process = pool.borrowProcess(borrowTimeout, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            LOG.warn("Could not launch pooled Maxima process", e);
+            MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_BUSY, "launch failed: " + e.getMessage());
+            return;
+        }
+        if (process == null) {
+            MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_BUSY, "no free Maxima process");
+            return;
+        }
+        String output = null;
+        try {
+            String error = null;
+            try {
+                output = process.executeCall(maximaInput, callTimeout);
+                callCount.incrementAndGet();
+            } catch (RuntimeException e) {
+                error = String.valueOf(e.getMessage());
+            }
+            if (error == null) {
+                MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_OK, output);
+            } else {
+                MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_ERROR, error);
+            }
+        } finally {
+            /* (After answering, so the client doesn't wait for the reset) */
+            recycle(process, output);
+        }
+    }
+
+    /**
+     * Returns a process to the pool after a call, clearing anything the call defined. A
+     * process whose call timed out (or failed) is terminated instead, as it may still be busy
+     * and would otherwise give its late output to the next client.
+     */
+    private void recycle(final MaximaInteractiveProcess process, final String output) {
+        try {
+            if (!process.isTerminated()) {
+                if (output == null || process.lastCallTimedOut()) {
+                    process.terminate();
+                } else {
+                    process.softReset();
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Could not reset pooled Maxima process, terminating it", e);
+            process.terminate();
+        } finally {
+            pool.returnProcess(process);
+        }
+    }
+
+    /**
+     * Runs a standalone server using {@link MaximaConfiguration#defaultConfig()}.
+     * The optional arguments are the port to listen on and the address to bind to
+     * (loopback by default).
+     */
+    public static void main(final String[] args) throws IOException {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 7890;
+        final InetAddress bindAddress = args.length > 1 ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+        final MaximaConfiguration configuration = MaximaConfiguration.defaultConfig();
+        final MaximaServer server = new MaximaServer(new MaximaProcessPool(new MaximaProcessLauncher(configuration), configuration));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                server.stop();
+            }
+        });
+        server.start(bindAddress, port);
+    }
+}
@@ -0,0 +1,238 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima.server;
+
+import com.tsinghuabigdata.common.logging.LogFactory;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Client-side view of one {@link MaximaServer}: its address, health state and a
+ * small pool of idle connections to it.
+ *
+ * @author tengyt
+ */
+class MaximaServerNode {
+
+    private static final Logger LOG = LogFactory.getLogger(MaximaServerNode.class);
+
+    private final InetSocketAddress address;
+    private final int connectTimeoutMillis;
+    private final BlockingQueue<Connection> idleConnections;
+
+    /**
+     * Time (as per {@link System#nanoTime()}) before which this node should not be
+     * used for calls, or 0 if the node is believed healthy
+     */
+    private volatile long downUntil;
+
+    MaximaServerNode(final InetSocketAddress address, final int connectTimeoutMillis) {
+        this.address = address;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.idleConnections = new LinkedBlockingQueue<>();
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    boolean isHealthy() {
+        final long until = downUntil;
+        return until == 0 || System.nanoTime() - until >= 0;
+    }
+
+    boolean isMarkedDown() {
+        return downUntil != 0;
+    }
+
+    void markDown(final long retryDelayNanos) {
+        LOG.warn("Marking Maxima server {} as down", address);
+        downUntil = System.nanoTime() + retryDelayNanos;
+        closeIdleConnections();
+    }
+
+    void markUp() {
+        if (downUntil != 0) {
+            LOG.info("Maxima server {} is available again", address);
+        }
+        downUntil = 0;
+    }
+
+    /**
+     * Sends a single request to this node. If an idle connection turns out to have been
+     * closed by the server before it answered anything, the request is sent once more on
+     * a new connection.
+     *
+     * @return the response, whose status should be checked by the caller
+     * @throws NotSentException if the node could not be reached, so the request was not sent
+     * @throws IOException      if the connection broke after the request was sent, in which
+     *                          case the server may have run the call
+     */
+    Response call(final String maximaInput, final int callTimeout, final int readTimeoutMillis) throws IOException {
+        final Connection idleConnection = idleConnections.poll();
+        if (idleConnection != null) {
+            try {
+                return call(idleConnection, maximaInput, callTimeout, readTimeoutMillis);
+            } catch (NotSentException | EOFException e) {
+                LOG.debug("Idle connection to Maxima server {} was closed, retrying on a new one", address);
+            } catch (SocketException e) {
+                /* (A reset before the status byte: the server dropped the connection unread) */
+                LOG.debug("Idle connection to Maxima server {} was reset, retrying on a new one", address);
+            }
+        }
+        final Connection connection;
+        try {
+            connection = connect();
+        } catch (IOException e) {
+            throw new NotSentException(address, e);
+        }
+        return call(connection, maximaInput, callTimeout, readTimeoutMillis);
+    }
+
+    /**
+     * Sends a request on the given connection, throwing {@link EOFException} or
+     * {@link SocketException} only if the connection broke before the status of the
+     * response could be read.
+     */
+    private Response call(final Connection connection, final String maximaInput, final int callTimeout,
+                          final int readTimeoutMillis) throws IOException {
+        boolean reusable = false;
+        try {
+            try {
+                connection.socket.setSoTimeout(readTimeoutMillis);
+                MaximaWireProtocol.writeCallRequest(connection.out, maximaInput, callTimeout);
+            } catch (IOException e) {
+                throw new NotSentException(address, e);
+            }
+            final byte status = connection.in.readByte();
+            final Response response;
+            try {
+                response = new Response(status, MaximaWireProtocol.readPayload(connection.in));
+            } catch (EOFException | SocketException e) {
+                throw new IOException("Connection to Maxima server " + address + " broke during response", e);
+            }
+            reusable = true;
+            return response;
+        } finally {
+            release(connection, reusable);
+        }
+    }
+
+    /**
+     * Checks whether this node answers a ping.
+     */
+    boolean ping(final int readTimeoutMillis) {
+        try {
+            final Connection connection = obtainConnection();
+            boolean reusable = false;
+            try {
+                connection.socket.setSoTimeout(readTimeoutMillis);
+                MaximaWireProtocol.writePingRequest(connection.out);
+                reusable = readResponse(connection).status == MaximaWireProtocol.STATUS_OK;
+                return reusable;
+            } finally {
+                release(connection, reusable);
+            }
+        } catch (IOException e) {
+            LOG.debug("Ping to Maxima server {} failed", address);
+            return false;
+        }
+    }
+
+    void closeIdleConnections() {
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private Response readResponse(final Connection connection) throws IOException {
+        final byte status = connection.in.readByte();
+        return new Response(status, MaximaWireProtocol.readPayload(connection.in));
+    }
+
+    private Connection obtainConnection() throws IOException {
+        final Connection connection = idleConnections.poll();
+        return connection != null ? connection : connect();
+    }
+
+    private Connection connect() throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.connect(address, connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (SocketTimeoutException e) {
+            /* (Reported as a failure to connect, unlike a call timing out) */
+            socket.close();
+            throw new ConnectException("Timed out connecting to " + address);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void release(final Connection connection, final boolean reusable) {
+        if (reusable) {
+            idleConnections.offer(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MaximaServerNode(" + address + ")";
+    }
+
+    /**
+     * Thrown when a request could not be sent to a node at all, so it is safe to send it
+     * to another one.
+     */
+    static final class NotSentException extends IOException {
+        NotSentException(final InetSocketAddress address, final IOException cause) {
+            super("Could not send request to Maxima server " + address, cause);
+        }
+    }
+
+    static final class Response {
+        final byte status;
+        final String payload;
+
+        Response(final byte status, final String payload) {
+            this.status = status;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.error(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing shared by {@link MaximaServer} and {@link MaximaClusterClient}.
+ * <p/>
+ * A request is <tt>[int magic][byte op]</tt>, followed for {@link #OP_CALL} by
+ * <tt>[int callTimeout][int length][UTF-8 input]</tt>. A response is
+ * <tt>[byte status][int length][UTF-8 payload]</tt>, where the payload is the raw Maxima
+ * output for {@link #STATUS_OK} and a diagnostic message otherwise.
+ *
+ * @author tengyt
+ */
+final class MaximaWireProtocol {
+
+    static final int MAGIC = 0x4D584A31; /* "MXJ1" */
+
+    static final byte OP_CALL = 1;
+    static final byte OP_PING = 2;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_BUSY = 2;
+
+    /**
+     * Upper bound on a single payload, to stop a corrupt length from exhausting the heap
+     */
+    static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    private MaximaWireProtocol() {
+    }
+
+    static void writeCallRequest(final DataOutputStream out, final String maximaInput, final int callTimeout) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(OP_CALL);
+        out.writeInt(callTimeout);
+        writePayload(out, maximaInput);
+        out.flush();
+    }
+
+    static void writePingRequest(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(OP_PING);
+        out.flush();
+    }
+
+    static void writeResponse(final DataOutputStream out, final byte status, final String payload) throws IOException {
+        out.writeByte(status);
+        writePayload(out, payload);
+        out.flush();
+    }
+
+    /**
+     * Reads the header of the next request, returning its op code.
+     */
+    static byte readRequestOp(final DataInputStream in) throws IOException {
+        final int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Unexpected protocol magic 0x" + Integer.toHexString(magic));
+        }
+        return in.readByte();
+    }
+
+    static String readPayload(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid payload length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writePayload(final DataOutputStream out, final String payload) throws IOException {
+        final byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
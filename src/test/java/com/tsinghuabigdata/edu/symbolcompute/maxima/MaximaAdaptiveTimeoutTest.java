@@ -0,0 +1,56 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MaximaAdaptiveTimeout}, which don't need a Maxima process.
+ *
+ * @author tengyt
+ */
+public class MaximaAdaptiveTimeoutTest {
+
+    @Test
+    public void testClassify() {
+        Assert.assertEquals("integrate/16", MaximaAdaptiveTimeout.classify("integrate(x^2,x);"));
+        Assert.assertEquals("solve/16", MaximaAdaptiveTimeout.classify(" solve (x^2=1,x);"));
+        Assert.assertEquals("/2", MaximaAdaptiveTimeout.classify("1;"));
+        Assert.assertEquals(":lisp/8", MaximaAdaptiveTimeout.classify(":lisp (princ 1)"));
+    }
+
+    @Test
+    public void testFallbackUntilEnoughSamples() {
+        final MaximaAdaptiveTimeout timeout = new MaximaAdaptiveTimeout(0.9, 2.0, 30);
+        for (int i = 0; i < MaximaAdaptiveTimeout.MIN_SAMPLES - 1; i++) {
+            timeout.record("factor(x^2-1);", TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        Assert.assertEquals(10, timeout.timeoutFor("factor(x^2-1);", 10));
+        Assert.assertEquals(30, timeout.timeoutFor("factor(x^2-1);", 0));
+    }
+
+    @Test
+    public void testPercentileTimesMultiplier() {
+        final MaximaAdaptiveTimeout timeout = new MaximaAdaptiveTimeout(0.9, 2.0, 30);
+        for (int i = 1; i <= 100; i++) {
+            timeout.record("integrate(sin(x)^2,x);", TimeUnit.MILLISECONDS.toNanos(i * 30));
+            timeout.record("factor(x^2-1);", TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        /* p90 is 2.7s, doubled and rounded up */
+        Assert.assertEquals(6, timeout.timeoutFor("integrate(cos(x)^2,x);", 10));
+        /* Fast classes never go below a second */
+        Assert.assertEquals(1, timeout.timeoutFor("factor(x^2-4);", 10));
+        /* Other classes are unaffected */
+        Assert.assertEquals(10, timeout.timeoutFor("solve(x^2=1,x);", 10));
+    }
+
+    @Test
+    public void testHardCap() {
+        final MaximaAdaptiveTimeout timeout = new MaximaAdaptiveTimeout(0.99, 3.0, 5);
+        for (int i = 0; i < MaximaAdaptiveTimeout.MIN_SAMPLES; i++) {
+            timeout.record("integrate(f(x),x);", TimeUnit.SECONDS.toNanos(20));
+        }
+        Assert.assertEquals(5, timeout.timeoutFor("integrate(g(x),x);", 10));
+    }
+}
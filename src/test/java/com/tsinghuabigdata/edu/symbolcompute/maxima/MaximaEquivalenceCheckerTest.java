@@ -0,0 +1,171 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for {@link MaximaEquivalenceChecker} batching, refusal and output parsing using a
+ * fake process, and for the generated Maxima code using a live Maxima process.
+ *
+ * @author tengyt
+ */
+public class MaximaEquivalenceCheckerTest {
+
+    @Test
+    public void testParseVerdicts() {
+        Assert.assertArrayEquals(new MaximaEquivalenceChecker.Verdict[]{MaximaEquivalenceChecker.Verdict.EQUIVALENT,
+                        MaximaEquivalenceChecker.Verdict.NOT_EQUIVALENT, MaximaEquivalenceChecker.Verdict.UNDECIDED,
+                        MaximaEquivalenceChecker.Verdict.ERROR},
+                MaximaEquivalenceChecker.parseVerdicts("8a1f/ENUX/8a1f", "8a1f", 4));
+        Assert.assertArrayEquals(new MaximaEquivalenceChecker.Verdict[]{MaximaEquivalenceChecker.Verdict.EQUIVALENT},
+                MaximaEquivalenceChecker.parseVerdicts("(%i3) 8a1f/E/8a1f", "8a1f", 1));
+        /* Timeout */
+        Assert.assertNull(MaximaEquivalenceChecker.parseVerdicts("", "8a1f", 2));
+        /* Output of an earlier call, and output broken over lines */
+        Assert.assertNull(MaximaEquivalenceChecker.parseVerdicts("77c0/EE/77c0", "8a1f", 2));
+        Assert.assertNull(MaximaEquivalenceChecker.parseVerdicts("8a1f/E", "8a1f", 2));
+    }
+
+    @Test
+    public void testRefusesUnsafeExpressions() {
+        final RecordingProcess process = new RecordingProcess();
+        final MaximaEquivalenceChecker checker = new MaximaEquivalenceChecker();
+        for (final String unsafe : new String[]{"system(\"rm -rf /\")", "eval_string(\"x:1\")", "parse_string(\"x\")",
+                "apply(\"system\",[\"ls\"])", "\"system\"(\"ls\")", "lambda([u],u)(1)", "?print(1)", "x:1",
+                "''(x)", "sys\\tem(1)", "f(x)"}) {
+            Assert.assertEquals(unsafe, MaximaEquivalenceChecker.Verdict.ERROR, checker.check(process, unsafe, "1", 5));
+        }
+        Assert.assertTrue(process.calls.isEmpty());
+        Assert.assertEquals(MaximaEquivalenceChecker.Verdict.EQUIVALENT,
+                checker.check(process, "sin(x)^2+cos (x)^2", "diff(x,x)*%e^(2*%pi*%i)", 5));
+    }
+
+    @Test
+    public void testTerminatesAfterBadOutput() {
+        final RecordingProcess process = new RecordingProcess();
+        process.output = "EE";
+        final MaximaEquivalenceChecker checker = new MaximaEquivalenceChecker(
+                ImmutableList.of(MaximaEquivalenceChecker.Strategy.RATSIMP), 4, 1.0e-6, 2);
+        final List<MaximaEquivalenceChecker.Verdict> verdicts = checker.checkAll(process,
+                Arrays.asList("x", "x", "x"), Arrays.asList("x", "x", "x"), 5);
+        Assert.assertEquals(Collections.nCopies(3, MaximaEquivalenceChecker.Verdict.ERROR), verdicts);
+        Assert.assertEquals(1, process.calls.size());
+        Assert.assertTrue(process.isTerminated());
+    }
+
+    @Test
+    public void testAgainstMaxima() throws IOException {
+        final MaximaProcessLauncher launcher = new MaximaProcessLauncher(MaximaConfiguration.defaultConfig());
+        final MaximaInteractiveProcess process = launcher.launchInteractiveProcess();
+        try {
+            final List<String> candidates = Lists.newArrayList();
+            final List<String> references = Lists.newArrayList();
+            final List<MaximaEquivalenceChecker.Verdict> expected = Lists.newArrayList();
+            /* (Enough pairs for the verdicts to be longer than linel) */
+            for (int i = 0; i < 50; i++) {
+                candidates.add("(x+" + i + ")^2");
+                references.add("x^2+" + (2 * i) + "*x+" + (i * i));
+                expected.add(MaximaEquivalenceChecker.Verdict.EQUIVALENT);
+                candidates.add("sin(x)^2+cos(x)^2");
+                references.add(String.valueOf(i % 2));
+                expected.add(i % 2 == 1 ? MaximaEquivalenceChecker.Verdict.EQUIVALENT
+                        : MaximaEquivalenceChecker.Verdict.NOT_EQUIVALENT);
+            }
+            candidates.add("x+");
+            references.add("x");
+            expected.add(MaximaEquivalenceChecker.Verdict.ERROR);
+            Assert.assertEquals(expected, new MaximaEquivalenceChecker().checkAll(process, candidates, references, 30));
+            Assert.assertFalse(process.isTerminated());
+        } finally {
+            process.terminate();
+        }
+    }
+
+    @Test
+    public void testBatchingAndRefusal() {
+        final RecordingProcess process = new RecordingProcess();
+        final MaximaEquivalenceChecker checker = new MaximaEquivalenceChecker(
+                ImmutableList.of(MaximaEquivalenceChecker.Strategy.RATSIMP), 4, 1.0e-6, 2);
+        final List<MaximaEquivalenceChecker.Verdict> verdicts = checker.checkAll(process,
+                Arrays.asList("(x+1)^2", "x:1", "2*x", "sin(x)\"", "y"),
+                Arrays.asList("x^2+2*x+1", "1", "x+x", "sin(x)", "z"), 5);
+
+        Assert.assertEquals(2, process.calls.size());
+        Assert.assertTrue(process.calls.get(0).contains("[\"(x+1)^2\",\"x^2+2*x+1\"],[\"2*x\",\"x+x\"]"));
+        Assert.assertTrue(process.calls.get(1).contains("[\"sin(x)\\\"\",\"sin(x)\"]"));
+        Assert.assertEquals(Arrays.asList(MaximaEquivalenceChecker.Verdict.EQUIVALENT,
+                MaximaEquivalenceChecker.Verdict.ERROR, MaximaEquivalenceChecker.Verdict.EQUIVALENT,
+                MaximaEquivalenceChecker.Verdict.EQUIVALENT, MaximaEquivalenceChecker.Verdict.EQUIVALENT), verdicts);
+    }
+
+    /**
+     * Fake process answering every equivalence check with "equivalent", or with the
+     * given output
+     */
+    private static final class RecordingProcess implements MaximaInteractiveProcess {
+
+        private static final Pattern NONCE = Pattern.compile("printf\\(true,\"(\\w+)/");
+
+        private final List<String> calls = Lists.newArrayList();
+        private String output;
+        private boolean terminated;
+
+        @Override
+        public String executeCall(final String maximaInput) {
+            return executeCall(maximaInput, 0);
+        }
+
+        @Override
+        public String executeCall(final String maximaInput, final int callTimeout) {
+            calls.add(maximaInput);
+            if (output != null) {
+                return output;
+            }
+            final Matcher nonce = NONCE.matcher(maximaInput);
+            Assert.assertTrue(nonce.find());
+            final int pairs = maximaInput.split("\\],\\[").length;
+            final StringBuilder result = new StringBuilder(nonce.group(1)).append('/');
+            for (int i = 0; i < pairs; i++) {
+                result.append('E');
+            }
+            return result.append('/').append(nonce.group(1)).toString();
+        }
+
+        @Override
+        public void executeCallDiscardOutput(final String maximaInput) {
+        }
+
+        @Override
+        public void executeCallDiscardOutput(final String maximaInput, final int callTimeout) {
+        }
+
+        @Override
+        public void softReset() {
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return terminated;
+        }
+
+        @Override
+        public boolean lastCallTimedOut() {
+            return false;
+        }
+
+        @Override
+        public int terminate() {
+            terminated = true;
+            return PROCESS_ALREADY_TERMINATED;
+        }
+    }
+}
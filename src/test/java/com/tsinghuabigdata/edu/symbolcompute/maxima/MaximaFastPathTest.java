@@ -0,0 +1,75 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Differential tests for {@link MaximaFastPath}, comparing its results with the outputs
+ * recorded from Maxima in <tt>maxima-fastpath.txt</tt>, and with a live Maxima process.
+ *
+ * @author tengyt
+ */
+public class MaximaFastPathTest {
+
+    private static final String RECORDED_OUTPUTS = "maxima-fastpath.txt";
+    private static final String SEPARATOR = " => ";
+    private static final String LEFT_TO_MAXIMA = "(maxima)";
+
+    @Test
+    public void testRecordedOutputs() throws IOException {
+        for (final String[] recorded : readRecordedOutputs()) {
+            final String expected = LEFT_TO_MAXIMA.equals(recorded[1]) ? null : recorded[1];
+            Assert.assertEquals(recorded[0], expected, MaximaFastPath.evaluate(recorded[0]));
+        }
+    }
+
+    @Test
+    public void testMayAffectResults() {
+        Assert.assertFalse(MaximaFastPath.mayAffectResults("expand((x+1)^2);"));
+        Assert.assertFalse(MaximaFastPath.mayAffectResults("display2d:false;linel:1024;"));
+        Assert.assertTrue(MaximaFastPath.mayAffectResults("numer:true$"));
+        Assert.assertTrue(MaximaFastPath.mayAffectResults("linel:20$"));
+        Assert.assertTrue(MaximaFastPath.mayAffectResults("simp:false$ string(1+x);"));
+        Assert.assertTrue(MaximaFastPath.mayAffectResults("[kill(all),reset()]$"));
+        Assert.assertTrue(MaximaFastPath.mayAffectResults("%+1;"));
+        Assert.assertTrue(MaximaFastPath.mayAffectResults("expand(%o2);"));
+        Assert.assertTrue(MaximaFastPath.mayAffectResults("%th(1)*2;"));
+        Assert.assertFalse(MaximaFastPath.mayAffectResults("sqrt(%pi)+%e;"));
+        Assert.assertFalse(MaximaFastPath.mayAffectResults("block([a:1],%%+a);"));
+    }
+
+    @Test
+    public void testAgainstMaxima() throws IOException {
+        final MaximaProcessLauncher launcher = new MaximaProcessLauncher(MaximaConfiguration.defaultConfig());
+        final MaximaInteractiveProcess process = launcher.launchInteractiveProcess();
+        try {
+            process.executeCallDiscardOutput("display2d:false$", 5);
+            for (final String[] recorded : readRecordedOutputs()) {
+                final String fastOutput = MaximaFastPath.evaluate(recorded[0]);
+                if (fastOutput != null) {
+                    Assert.assertEquals(recorded[0], process.executeCall(recorded[0], 5), fastOutput);
+                }
+            }
+        } finally {
+            process.terminate();
+        }
+    }
+
+    private static List<String[]> readRecordedOutputs() throws IOException {
+        final List<String[]> result = Lists.newArrayList();
+        for (final String line : Resources.readLines(Resources.getResource(RECORDED_OUTPUTS), StandardCharsets.UTF_8)) {
+            final int separator = line.lastIndexOf(SEPARATOR);
+            if (line.startsWith("#") || separator < 0) {
+                continue;
+            }
+            result.add(new String[]{line.substring(0, separator), line.substring(separator + SEPARATOR.length())});
+        }
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.base.Ticker;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MaximaLaunchGuard} and {@link MaximaCrashType}, which don't need a Maxima process.
+ *
+ * @author tengyt
+ */
+public class MaximaLaunchGuardTest {
+
+    private long now;
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now;
+        }
+    };
+
+    private void advance(final long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private void assertRefused(final MaximaLaunchGuard guard) {
+        try {
+            guard.beforeLaunch();
+            Assert.fail("launch should have been refused");
+        } catch (MaximaLaunchException e) {
+            Assert.assertEquals(MaximaCrashType.CIRCUIT_OPEN, e.getCrashType());
+        }
+    }
+
+    @Test
+    public void testOpensAfterThreshold() throws Exception {
+        final MaximaLaunchGuard guard = new MaximaLaunchGuard(1000, 3, 1000, 8000, ticker);
+        for (int i = 0; i < 3; i++) {
+            guard.beforeLaunch();
+            guard.recordFailure(MaximaCrashType.BAD_CORE);
+        }
+        Assert.assertEquals(MaximaLaunchGuard.State.OPEN, guard.getState());
+        assertRefused(guard);
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        final MaximaLaunchGuard guard = new MaximaLaunchGuard(1000, 1, 1000, 8000, ticker);
+        guard.beforeLaunch();
+        guard.recordFailure(MaximaCrashType.OUT_OF_MEMORY);
+
+        advance(1000);
+        guard.beforeLaunch();
+        Assert.assertEquals(MaximaLaunchGuard.State.HALF_OPEN, guard.getState());
+        /* Only one probe at a time */
+        assertRefused(guard);
+
+        /* Failed probe doubles the backoff */
+        guard.recordFailure(MaximaCrashType.OUT_OF_MEMORY);
+        advance(1000);
+        assertRefused(guard);
+        advance(1000);
+        guard.beforeLaunch();
+        guard.recordSuccess();
+        Assert.assertEquals(MaximaLaunchGuard.State.CLOSED, guard.getState());
+        guard.beforeLaunch();
+    }
+
+    @Test
+    public void testLostProbeExpires() throws Exception {
+        final MaximaLaunchGuard guard = new MaximaLaunchGuard(1000, 1, 1000, 8000, 5000, ticker);
+        guard.beforeLaunch();
+        guard.recordFailure(MaximaCrashType.CRASHED);
+
+        advance(1000);
+        guard.beforeLaunch();
+        /* (Probe outcome never recorded) */
+        advance(4000);
+        assertRefused(guard);
+        advance(1000);
+        guard.beforeLaunch();
+        guard.recordSuccess();
+        Assert.assertEquals(MaximaLaunchGuard.State.CLOSED, guard.getState());
+    }
+
+    @Test
+    public void testClassify() {
+        Assert.assertEquals(MaximaCrashType.OUT_OF_MEMORY, MaximaCrashType.classify(1, "Heap exhausted during allocation"));
+        Assert.assertEquals(MaximaCrashType.OUT_OF_MEMORY, MaximaCrashType.classify(137, ""));
+        Assert.assertEquals(MaximaCrashType.BAD_CORE, MaximaCrashType.classify(1, "can't find core file at /x/maxima.core"));
+        Assert.assertEquals(MaximaCrashType.KILLED, MaximaCrashType.classify(139, null));
+        Assert.assertEquals(MaximaCrashType.CRASHED, MaximaCrashType.classify(1, "something else"));
+    }
+}
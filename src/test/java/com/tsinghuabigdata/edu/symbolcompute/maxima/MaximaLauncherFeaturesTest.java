@@ -0,0 +1,99 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * Integration tests for asynchronous launches, pool prestarting and events of the
+ * {@link MaximaProcessLauncher} class. (Kept apart from {@link MaximaProcessLauncherTest},
+ * whose tests are inherited by the other integration tests.)
+ *
+ * @author tengyt
+ */
+public class MaximaLauncherFeaturesTest {
+
+    @Test
+    public void testLaunchAsync() throws Exception {
+        final MaximaProcessLauncher launcher = new MaximaProcessLauncher(MaximaConfiguration.defaultConfig());
+        final List<Future<MaximaInteractiveProcess>> futures = launcher.launchInteractiveProcessesAsync(4);
+        for (final Future<MaximaInteractiveProcess> future : futures) {
+            final MaximaInteractiveProcess process = future.get();
+            try {
+                /* (Startup output must not leak into the first call) */
+                Assert.assertEquals("1", process.executeCall("1;"));
+            } finally {
+                process.terminate();
+            }
+        }
+    }
+
+    @Test
+    public void testPoolPrestart() throws Exception {
+        final MaximaProcessPool pool = new MaximaProcessPool(new MaximaProcessLauncher(MaximaConfiguration.defaultConfig()), 3);
+        try {
+            Assert.assertEquals(3, pool.prestart(5));
+            Assert.assertEquals(3, pool.getIdleCount());
+            Assert.assertEquals("2", pool.executeCall("2;", 5, 5));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPoolDropsTimedOutProcess() throws Exception {
+        final MaximaProcessPool pool = new MaximaProcessPool(new MaximaProcessLauncher(MaximaConfiguration.defaultConfig()), 1);
+        try {
+            pool.executeCall("block([s:0],for i thru 10^9 do s:s+i)$", 1, 5);
+            /* (Its late output must not reach the next borrower) */
+            Assert.assertEquals(0, pool.getLiveCount());
+            Assert.assertEquals("2", pool.executeCall("2;", 5, 5));
+            Assert.assertEquals(1, pool.getIdleCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        final MaximaProcessLauncher launcher = new MaximaProcessLauncher(MaximaConfiguration.defaultConfig());
+        final List<MaximaEvent.Type> types = new CopyOnWriteArrayList<>();
+        launcher.addEventListener(new MaximaEventListener() {
+            public void onEvent(final MaximaEvent event) {
+                types.add(event.getType());
+            }
+        });
+        final MaximaInteractiveProcess process = launcher.launchInteractiveProcess();
+        Assert.assertEquals("3", process.executeCall("1+2;"));
+        process.terminate();
+        Assert.assertEquals(MaximaEvent.Type.LAUNCHED, types.get(0));
+        Assert.assertEquals(MaximaEvent.Type.CALL_STARTED, types.get(1));
+        Assert.assertEquals(MaximaEvent.Type.CALL_FINISHED, types.get(2));
+        Assert.assertEquals(MaximaEvent.Type.TERMINATED, types.get(3));
+    }
+
+    @Test
+    public void testSilentCallEvents() throws Exception {
+        final MaximaProcessLauncher launcher = new MaximaProcessLauncher(MaximaConfiguration.defaultConfig());
+        final List<MaximaEvent.Type> types = new CopyOnWriteArrayList<>();
+        launcher.addEventListener(new MaximaEventListener() {
+            public void onEvent(final MaximaEvent event) {
+                if (event.getType() != MaximaEvent.Type.CALL_STARTED) {
+                    types.add(event.getType());
+                }
+            }
+        });
+        final MaximaInteractiveProcess process = launcher.launchInteractiveProcess();
+        try {
+            process.executeCallDiscardOutput("a:1$");
+            process.executeCallDiscardOutput("block([s:0],for i thru 10^9 do s:s+i)$", 1);
+        } finally {
+            process.terminate();
+        }
+        Assert.assertEquals(MaximaEvent.Type.CALL_FINISHED, types.get(1));
+        Assert.assertEquals(MaximaEvent.Type.CALL_TIMED_OUT, types.get(2));
+    }
+}
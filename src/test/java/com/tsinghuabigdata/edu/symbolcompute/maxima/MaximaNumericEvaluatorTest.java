@@ -0,0 +1,139 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Tests for {@link MaximaNumericEvaluator}. Only {@link #testAgainstMaxima()} needs a
+ * Maxima process.
+ *
+ * @author tengyt
+ */
+public class MaximaNumericEvaluatorTest {
+
+    @Test
+    public void testParseValueIsExact() {
+        final Random random = new Random(37);
+        final double[] samples = new double[1000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = Double.longBitsToDouble(random.nextLong());
+        }
+        samples[0] = 0.0;
+        samples[1] = -0.0;
+        samples[2] = Double.MIN_VALUE;
+        samples[3] = Math.PI;
+        for (final double sample : samples) {
+            if (!Double.isNaN(sample) && !Double.isInfinite(sample)) {
+                Assert.assertEquals(Double.doubleToLongBits(sample),
+                        Double.doubleToLongBits(MaximaNumericEvaluator.parseValue(integerDecodeFloat(sample))));
+            }
+        }
+        Assert.assertTrue(Double.isNaN(MaximaNumericEvaluator.parseValue("n")));
+    }
+
+    @Test
+    public void testParseResults() {
+        final double[] results = new double[3];
+        MaximaNumericEvaluator.parseResults("10000000000000:-52 n -18000000000000:-52 \n", results, 0, 3);
+        Assert.assertEquals(1.0, results[0], 0.0);
+        Assert.assertTrue(Double.isNaN(results[1]));
+        Assert.assertEquals(-1.5, results[2], 0.0);
+        /* (A timeout must not be mistaken for results) */
+        Assert.assertFalse(MaximaNumericEvaluator.parseResults("", results, 0, 3));
+        Assert.assertFalse(MaximaNumericEvaluator.parseResults("1 2 3", results, 0, 3));
+    }
+
+    @Test
+    public void testBuildCall() {
+        Assert.assertEquals("1.0d-5", MaximaNumericEvaluator.toLispDouble(1.0e-5));
+        Assert.assertEquals("-2.5d0", MaximaNumericEvaluator.toLispDouble(-2.5));
+        final String call = MaximaNumericEvaluator.buildCall("sin(x)*y", Arrays.asList("x", "y"),
+                new double[]{0.5, 1.0, 2.0, 3.0}, 1, 2);
+        Assert.assertTrue(call.startsWith(":lisp ("));
+        Assert.assertTrue(call.endsWith(")"));
+        Assert.assertTrue(call.contains("(p #(2.0d0 3.0d0 ))"));
+        Assert.assertTrue(call.contains("($parse_string \"sin(x)*y\")"));
+    }
+
+    @Test
+    public void testTerminatesAfterBadOutput() {
+        final boolean[] terminated = new boolean[1];
+        final MaximaInteractiveProcess process = new MaximaInteractiveProcess() {
+            public String executeCall(final String maximaInput) {
+                return "";
+            }
+
+            public String executeCall(final String maximaInput, final int callTimeout) {
+                return "";
+            }
+
+            public void executeCallDiscardOutput(final String maximaInput) {
+            }
+
+            public void executeCallDiscardOutput(final String maximaInput, final int callTimeout) {
+            }
+
+            public void softReset() {
+            }
+
+            public boolean isTerminated() {
+                return terminated[0];
+            }
+
+            public boolean lastCallTimedOut() {
+                return true;
+            }
+
+            public int terminate() {
+                terminated[0] = true;
+                return PROCESS_ALREADY_TERMINATED;
+            }
+        };
+        try {
+            new MaximaNumericEvaluator().evaluate(process, "x^2", Collections.singletonList("x"), new double[]{1.0}, 5);
+            Assert.fail("timeout must not be mistaken for results");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(terminated[0]);
+        }
+    }
+
+    @Test
+    public void testAgainstMaxima() throws IOException {
+        final MaximaProcessLauncher launcher = new MaximaProcessLauncher(MaximaConfiguration.defaultConfig());
+        final MaximaInteractiveProcess process = launcher.launchInteractiveProcess();
+        try {
+            final double[] results = new MaximaNumericEvaluator(2).evaluate(process, "log(x)+y^2", Arrays.asList("x", "y"),
+                    new double[][]{{1.0, 1.5}, {-1.0, 0.0}, {Math.E, -0.1}}, 30);
+            Assert.assertEquals(3, results.length);
+            Assert.assertEquals(2.25, results[0], 0.0);
+            /* (Complex) */
+            Assert.assertTrue(Double.isNaN(results[1]));
+            Assert.assertEquals(1.01, results[2], 1.0e-12);
+            try {
+                new MaximaNumericEvaluator().evaluate(process, "x+", Collections.singletonList("x"), new double[]{1.0}, 30);
+                Assert.fail("unparseable expression must not give results");
+            } catch (IllegalStateException e) {
+                Assert.assertTrue(process.isTerminated());
+            }
+        } finally {
+            process.terminate();
+        }
+    }
+
+    /**
+     * Formats a double as <tt>(integer-decode-float x)</tt> does in the Lisp evaluation call
+     */
+    private static String integerDecodeFloat(final double value) {
+        final long bits = Double.doubleToLongBits(value);
+        final int biasedExponent = (int) ((bits >>> 52) & 0x7ff);
+        final long fraction = bits & 0xfffffffffffffL;
+        final long mantissa = biasedExponent == 0 ? fraction : fraction | (1L << 52);
+        final int exponent = (biasedExponent == 0 ? 1 : biasedExponent) - 1075;
+        return (bits < 0 ? "-" : "") + Long.toHexString(mantissa).toUpperCase() + ":" + exponent;
+    }
+}
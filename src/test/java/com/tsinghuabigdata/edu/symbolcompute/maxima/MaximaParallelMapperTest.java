@@ -0,0 +1,78 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Integration tests for {@link MaximaParallelMapper}.
+ *
+ * @author tengyt
+ */
+public class MaximaParallelMapperTest {
+
+    private MaximaProcessPool pool;
+    private MaximaParallelMapper mapper;
+
+    @Before
+    public void setup() {
+        pool = new MaximaProcessPool(new MaximaProcessLauncher(MaximaConfiguration.defaultConfig()), 3);
+        mapper = new MaximaParallelMapper(pool);
+    }
+
+    @After
+    public void cleanup() {
+        mapper.close();
+        pool.close();
+    }
+
+    @Test
+    public void testIsPipelinable() {
+        Assert.assertTrue(MaximaParallelMapper.isPipelinable(" expand((x+1)^2); "));
+        Assert.assertFalse(MaximaParallelMapper.isPipelinable("a:1$"));
+        Assert.assertFalse(MaximaParallelMapper.isPipelinable("a:1;a+1;"));
+        Assert.assertFalse(MaximaParallelMapper.isPipelinable(":lisp (+ 1 2);"));
+    }
+
+    @Test
+    public void testParallelMapKeepsOrder() throws Exception {
+        final List<String> inputs = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            inputs.add(i + "+1;");
+        }
+        final List<String> results = mapper.parallelMap(inputs, 5);
+        Assert.assertEquals(inputs.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(String.valueOf(i + 1), results.get(i));
+        }
+        Assert.assertTrue(pool.getLiveCount() <= pool.getMaxSize());
+    }
+
+    @Test
+    public void testResultsDontDependOnPipelining() throws Exception {
+        /* (Longer than linel, so Maxima would break its displayed output) */
+        final String expected = BigInteger.valueOf(2).pow(300).toString();
+        Assert.assertEquals(Collections.singletonList(expected), mapper.parallelMap(Collections.singletonList("2^300;"), 5));
+        final List<String> results = mapper.parallelMap(Collections.nCopies(40, "2^300;"), 5);
+        Assert.assertEquals(Collections.nCopies(40, expected), results);
+    }
+
+    @Test
+    public void testSilentTimeoutDropsProcess() throws Exception {
+        final List<String> inputs = Lists.newArrayList("10^9$");
+        for (int i = 1; i < 30; i++) {
+            inputs.add(i + "+1;");
+        }
+        final List<String> results = mapper.parallelMap(inputs, 1);
+        Assert.assertNull(results.get(0));
+        for (int i = 1; i < results.size(); i++) {
+            Assert.assertEquals(String.valueOf(i + 1), results.get(i));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MaximaPoolAutoscaler} and the CPU detection it relies on.
+ *
+ * @author tengyt
+ */
+public class MaximaPoolAutoscalerTest {
+
+    @Test
+    public void testParseCpus() {
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 6, 8, 9), MaximaCpus.parseCpuList("0-3,6,8-9\n"));
+        Assert.assertEquals(1.5, MaximaCpus.parseCpuMax("150000 100000\n"), 1e-9);
+        Assert.assertEquals(0.0, MaximaCpus.parseCpuMax("max 100000"), 1e-9);
+        Assert.assertTrue(MaximaCpus.availableCpus() >= 1);
+    }
+
+    @Test
+    public void testGrowAndShrink() throws Exception {
+        final MaximaProcessPool pool = new MaximaProcessPool(new MaximaProcessLauncher(MaximaConfiguration.defaultConfig()), 1);
+        final MaximaPoolAutoscaler autoscaler = new MaximaPoolAutoscaler(pool, 1, 3, TimeUnit.HOURS.toMillis(1));
+        try {
+            final MaximaInteractiveProcess process = pool.borrowProcess(5, TimeUnit.SECONDS);
+            /* (All processes busy) */
+            Assert.assertEquals(2, autoscaler.adjust());
+            Assert.assertEquals(2, pool.getLiveCount());
+            pool.returnProcess(process);
+
+            for (int i = 1; i < MaximaPoolAutoscaler.SHRINK_AFTER_INTERVALS; i++) {
+                Assert.assertEquals(2, autoscaler.adjust());
+            }
+            Assert.assertEquals(1, autoscaler.adjust());
+            Assert.assertEquals(1, pool.getLiveCount());
+        } finally {
+            autoscaler.close();
+            pool.close();
+        }
+    }
+}
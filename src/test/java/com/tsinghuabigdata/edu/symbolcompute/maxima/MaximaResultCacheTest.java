@@ -0,0 +1,114 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Tests for {@link MaximaResultCache}, which don't need a Maxima process. Two instances
+ * opened on the same directory stand in for two JVMs.
+ *
+ * @author tengyt
+ */
+public class MaximaResultCacheTest {
+
+    private File directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("maxima-cache").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSharedBetweenInstances() throws IOException {
+        try (MaximaResultCache first = new MaximaResultCache(directory, 42L, 1 << 16);
+             MaximaResultCache second = new MaximaResultCache(directory, 42L, 1 << 16);
+             MaximaResultCache other = new MaximaResultCache(directory, 43L, 1 << 16)) {
+            Assert.assertNull(first.get("expand((x+1)^2);"));
+            first.put("expand((x+1)^2);", "x^2+2*x+1");
+            Assert.assertEquals("x^2+2*x+1", first.get("expand((x+1)^2);"));
+            Assert.assertEquals("x^2+2*x+1", second.get("expand((x+1)^2);"));
+            /* (Different Maxima setup) */
+            Assert.assertNull(other.get("expand((x+1)^2);"));
+        }
+        try (MaximaResultCache reopened = new MaximaResultCache(directory, 42L, 1 << 16)) {
+            Assert.assertEquals("x^2+2*x+1", reopened.get("expand((x+1)^2);"));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        try (MaximaResultCache first = new MaximaResultCache(directory, 42L, 4096);
+             MaximaResultCache second = new MaximaResultCache(directory, 42L, 4096)) {
+            for (int i = 0; i < 500; i++) {
+                first.put(i + "^2;", String.valueOf(i * i));
+            }
+            Assert.assertEquals(4096, first.getFile().length());
+            Assert.assertEquals("249001", first.get("499^2;"));
+            Assert.assertNull(first.get("0^2;"));
+            /* (Has to switch to the compacted file) */
+            Assert.assertEquals("249001", second.get("499^2;"));
+        }
+    }
+
+    @Test
+    public void testFailedCompactionStopsCompacting() throws IOException {
+        try (MaximaResultCache cache = new MaximaResultCache(directory, 42L, 4096)) {
+            /* (Stops the compacted file from being written) */
+            final File blocker = new File(cache.getFile().getPath() + ".compact");
+            Assert.assertTrue(blocker.mkdir());
+            for (int i = 0; i < 500; i++) {
+                cache.put(i + "^2;", String.valueOf(i * i));
+            }
+            Assert.assertEquals("0", cache.get("0^2;"));
+            Assert.assertNull(cache.get("499^2;"));
+            Assert.assertTrue(blocker.delete());
+            cache.put("500^2;", "250000");
+            Assert.assertNull(cache.get("500^2;"));
+        }
+        try (MaximaResultCache reopened = new MaximaResultCache(directory, 42L, 4096)) {
+            reopened.put("500^2;", "250000");
+            Assert.assertEquals("250000", reopened.get("500^2;"));
+        }
+    }
+
+    @Test
+    public void testIsCacheable() {
+        Assert.assertTrue(MaximaInputs.isCacheable("factor(2^64-1);"));
+        Assert.assertTrue(MaximaInputs.isCacheable("float(sin(%pi/3))*1.5e3;"));
+        Assert.assertFalse(MaximaInputs.isCacheable("random(10);"));
+        Assert.assertFalse(MaximaInputs.isCacheable("a:1;"));
+        Assert.assertFalse(MaximaInputs.isCacheable("a;b;"));
+        Assert.assertFalse(MaximaInputs.isCacheable("factor(2^64-1)$"));
+        /* (Symbols and functions might have been given values or definitions) */
+        Assert.assertFalse(MaximaInputs.isCacheable("factor(x^2-1);"));
+        Assert.assertFalse(MaximaInputs.isCacheable("f(2);"));
+        /* (References to earlier results) */
+        Assert.assertFalse(MaximaInputs.isCacheable("%+1;"));
+        Assert.assertFalse(MaximaInputs.isCacheable("expand(%o3);"));
+        Assert.assertFalse(MaximaInputs.isCacheable("%th(2)*2;"));
+    }
+
+    @Test
+    public void testIsLiteralAssignment() {
+        Assert.assertTrue(MaximaInputs.isLiteralAssignment("display2d:false$"));
+        Assert.assertTrue(MaximaInputs.isLiteralAssignment("fpprec:30$ linel : 200;"));
+        Assert.assertFalse(MaximaInputs.isLiteralAssignment("domain:complex$"));
+        Assert.assertFalse(MaximaInputs.isLiteralAssignment("a:1$ b:a$"));
+        Assert.assertFalse(MaximaInputs.isLiteralAssignment("f(x):=1$"));
+        Assert.assertFalse(MaximaInputs.isLiteralAssignment("1/0; numer:true$"));
+    }
+}
@@ -0,0 +1,140 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Integration tests for {@link MaximaSessionManager}, sharing a single pooled process
+ * between several sessions.
+ *
+ * @author tengyt
+ */
+public class MaximaSessionManagerTest {
+
+    private MaximaProcessPool pool;
+
+    @Before
+    public void setup() {
+        pool = new MaximaProcessPool(new MaximaProcessLauncher(MaximaConfiguration.defaultConfig()), 1);
+    }
+
+    @After
+    public void cleanup() {
+        pool.close();
+    }
+
+    /**
+     * Waits for the sweeper to release the session, which includes a soft reset of its process.
+     */
+    private void waitUntilReleased(final MaximaSession session) throws InterruptedException {
+        for (int i = 0; i < 300 && session.isPinned(); i++) {
+            Thread.sleep(100);
+        }
+        /* (Let the sweeper finish its bookkeeping) */
+        Thread.sleep(200);
+    }
+
+    @Test
+    public void testReplayAfterIdleRelease() throws Exception {
+        final MaximaSessionManager manager = new MaximaSessionManager(pool, 1, MaximaSessionManager.IdlePolicy.REPLAY);
+        try {
+            final MaximaSession session = manager.openSession();
+            session.executeCall("display2d:false;");
+            session.executeCall("f(x):=x^2+1;");
+            Assert.assertTrue(session.isPinned());
+
+            waitUntilReleased(session);
+            Assert.assertFalse(session.isPinned());
+            Assert.assertEquals(1, pool.getIdleCount());
+
+            Assert.assertEquals("10", session.executeCall("f(3);"));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testResetClosesIdleSession() throws Exception {
+        final MaximaSessionManager manager = new MaximaSessionManager(pool, 1, MaximaSessionManager.IdlePolicy.RESET);
+        try {
+            final MaximaSession session = manager.openSession();
+            session.executeCall("1;");
+            Assert.assertEquals(1, manager.getSessionCount());
+
+            waitUntilReleased(session);
+            Assert.assertTrue(session.isClosed());
+            Assert.assertEquals(0, manager.getSessionCount());
+            Assert.assertNull(manager.getSession(session.getId()));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testTimedOutCallDropsProcess() throws Exception {
+        final MaximaSessionManager manager = new MaximaSessionManager(pool, 60, MaximaSessionManager.IdlePolicy.REPLAY);
+        try {
+            final MaximaSession session = manager.openSession();
+            session.executeCall("block([s:0],for i thru 10^9 do s:s+i)$", 1);
+            Assert.assertFalse(session.isPinned());
+            Assert.assertEquals(0, pool.getLiveCount());
+            /* (Not the late output of the previous call) */
+            Assert.assertEquals("2", session.executeCall("2;"));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        final MaximaSessionManager manager = new MaximaSessionManager(pool, 60, MaximaSessionManager.IdlePolicy.REPLAY,
+                MaximaSessionManager.DEFAULT_BORROW_TIMEOUT, 1, 2, 10);
+        try {
+            final MaximaSession session = manager.openSession();
+            manager.openSession();
+            try {
+                manager.openSession();
+                Assert.fail("session limit not enforced");
+            } catch (IllegalStateException e) {
+                /* Expected */
+            }
+            Thread.sleep(1500);
+            Assert.assertTrue(session.isClosed());
+            Assert.assertEquals(0, manager.getSessionCount());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testFullJournalClosesSession() throws Exception {
+        final MaximaSessionManager manager = new MaximaSessionManager(pool, 1, MaximaSessionManager.IdlePolicy.REPLAY,
+                MaximaSessionManager.DEFAULT_BORROW_TIMEOUT, 60, 10, 10);
+        try {
+            final MaximaSession session = manager.openSession();
+            session.executeCall("a:1$");
+            session.executeCall("b:12345678$");
+            waitUntilReleased(session);
+            Assert.assertTrue(session.isClosed());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testSessionsShareProcesses() throws Exception {
+        final MaximaSessionManager manager = new MaximaSessionManager(pool, 60, MaximaSessionManager.IdlePolicy.REPLAY);
+        try {
+            for (int i = 0; i < 5; i++) {
+                final MaximaSession session = manager.openSession();
+                Assert.assertEquals(String.valueOf(i), session.executeCall(i + ";"));
+                session.close();
+            }
+            Assert.assertEquals(1, pool.getLiveCount());
+        } finally {
+            manager.close();
+        }
+    }
+}
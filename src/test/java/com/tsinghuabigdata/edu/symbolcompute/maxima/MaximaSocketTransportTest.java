@@ -0,0 +1,131 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MaximaSocketTransport}, using plain sockets that answer its identify
+ * probe in place of Maxima processes.
+ *
+ * @author tengyt
+ */
+public class MaximaSocketTransportTest {
+
+    private MaximaSocketTransport transport;
+
+    @Before
+    public void setup() throws IOException {
+        transport = new MaximaSocketTransport(0);
+    }
+
+    @After
+    public void cleanup() {
+        transport.close();
+    }
+
+    /**
+     * Connects like a Maxima started with the given token (empty for none), then sends the
+     * given greeting.
+     */
+    private Socket connect(final String token, final String greeting) throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), transport.getPort());
+        final OutputStream output = socket.getOutputStream();
+        output.write("Maxima banner\n(%i1) ".getBytes(StandardCharsets.UTF_8));
+        final String probe = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+        Assert.assertTrue(probe, probe.startsWith(":lisp"));
+        output.write(("jacomax-token=" + token + "\n" + greeting + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        return socket;
+    }
+
+    private String readGreeting(final MaximaSocketConnection connection) throws IOException {
+        Assert.assertNotNull(connection);
+        return connection.readLine(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    @Test
+    public void testMatchesConnectionsByToken() throws Exception {
+        final Socket first = connect("first", "hello from first");
+        final Socket second = connect("second", "hello from second");
+        try {
+            Assert.assertEquals("hello from second", readGreeting(transport.accept("second", 5, TimeUnit.SECONDS)));
+            Assert.assertEquals("hello from first", readGreeting(transport.accept("first", 5, TimeUnit.SECONDS)));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testAnonymousConnections() throws Exception {
+        final Socket identified = connect("launched", "hello from launched");
+        final Socket anonymous = connect("", "hello from server");
+        try {
+            Assert.assertEquals("hello from server", readGreeting(transport.accept(null, 5, TimeUnit.SECONDS)));
+            Assert.assertNull(transport.accept(null, 200, TimeUnit.MILLISECONDS));
+        } finally {
+            identified.close();
+            anonymous.close();
+        }
+    }
+
+    @Test
+    public void testLateConnectionIsClosed() throws Exception {
+        Assert.assertNull(transport.accept("late", 200, TimeUnit.MILLISECONDS));
+        final Socket late = connect("late", "hello");
+        try {
+            /* (The transport closes the connection once it has identified it) */
+            late.setSoTimeout((int) TimeUnit.SECONDS.toMillis(5));
+            Assert.assertEquals(-1, late.getInputStream().read());
+            Assert.assertNull(transport.accept("late", 200, TimeUnit.MILLISECONDS));
+        } finally {
+            late.close();
+        }
+    }
+
+    @Test
+    public void testAbandonedTokenExpires() throws Exception {
+        Assert.assertNull(transport.accept("late", 200, TimeUnit.MILLISECONDS));
+        Thread.sleep(300);
+        /* (Abandoning another token forgets the expired one) */
+        Assert.assertNull(transport.accept("other", 10, TimeUnit.MILLISECONDS));
+        final Socket late = connect("late", "hello");
+        try {
+            Assert.assertEquals("hello", readGreeting(transport.accept("late", 5, TimeUnit.SECONDS)));
+        } finally {
+            late.close();
+        }
+    }
+
+    @Test
+    public void testUnreadOutputIsCapped() throws Exception {
+        final Socket socket = connect("chatty", "hello");
+        try {
+            final MaximaSocketConnection connection = transport.accept("chatty", 5, TimeUnit.SECONDS);
+            Assert.assertEquals("hello", readGreeting(connection));
+            final byte[] chunk = new byte[1024 * 1024];
+            try {
+                for (int i = 0; i <= MaximaSocketConnection.MAX_INBOUND_BYTES / chunk.length; i++) {
+                    socket.getOutputStream().write(chunk);
+                }
+            } catch (IOException e) {
+                /* (Closed by the transport while still writing) */
+            }
+            Assert.assertNull(connection.readLine(TimeUnit.SECONDS.toMillis(5)));
+            Assert.assertEquals(-1, connection.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+}
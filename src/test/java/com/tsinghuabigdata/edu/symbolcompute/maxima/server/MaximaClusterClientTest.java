@@ -0,0 +1,137 @@
+package com.tsinghuabigdata.edu.symbolcompute.maxima.server;
+
+import com.google.common.collect.Lists;
+import com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaConfiguration;
+import com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaProcessLauncher;
+import com.tsinghuabigdata.edu.symbolcompute.maxima.MaximaProcessPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Integration tests running a {@link MaximaClusterClient} against several
+ * {@link MaximaServer}s on localhost.
+ *
+ * @author tengyt
+ */
+public class MaximaClusterClientTest {
+
+    private static final int SERVER_COUNT = 3;
+
+    private List<MaximaServer> servers;
+    private List<InetSocketAddress> addresses;
+    private MaximaClusterClient client;
+
+    @Before
+    public void setup() throws IOException {
+        final MaximaConfiguration configuration = MaximaConfiguration.defaultConfig();
+        servers = Lists.newArrayList();
+        addresses = Lists.newArrayList();
+        for (int i = 0; i < SERVER_COUNT; i++) {
+            final MaximaServer server = new MaximaServer(new MaximaProcessPool(new MaximaProcessLauncher(configuration), 1));
+            addresses.add(server.start(0));
+            servers.add(server);
+        }
+        client = new MaximaClusterClient(addresses);
+    }
+
+    @After
+    public void cleanup() {
+        if (client != null) {
+            client.close();
+        }
+        for (final MaximaServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRingIsStable() {
+        final ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("a", "b", "c"));
+        final ConsistentHashRing<String> sameRing = new ConsistentHashRing<>(Arrays.asList("c", "b", "a"));
+        for (int i = 0; i < 100; i++) {
+            final String key = "session" + i;
+            Assert.assertEquals(ring.memberFor(key), sameRing.memberFor(key));
+            Assert.assertEquals(ring.memberFor(key), ring.membersFor(key).get(0));
+            Assert.assertEquals(3, ring.membersFor(key).size());
+        }
+    }
+
+    @Test
+    public void testListensOnLoopbackByDefault() {
+        for (final InetSocketAddress address : addresses) {
+            Assert.assertTrue(address.getAddress().isLoopbackAddress());
+        }
+    }
+
+    @Test
+    public void testSameSessionSameServer() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(String.valueOf(i), client.executeCall("session", i + ";", 5));
+        }
+        int serversUsed = 0;
+        for (final MaximaServer server : servers) {
+            if (server.getCallCount() > 0) {
+                Assert.assertEquals(10, server.getCallCount());
+                serversUsed++;
+            }
+        }
+        Assert.assertEquals(1, serversUsed);
+    }
+
+    @Test
+    public void testStaleConnectionIsRetried() throws Exception {
+        /* (A node that drops each connection after answering one request, as if it had
+         * closed idle connections) */
+        final ServerSocket serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        final Thread serverThread = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        try (Socket socket = serverSocket.accept()) {
+                            final DataInputStream in = new DataInputStream(socket.getInputStream());
+                            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                            MaximaWireProtocol.readRequestOp(in);
+                            in.readInt();
+                            MaximaWireProtocol.writeResponse(out, MaximaWireProtocol.STATUS_OK,
+                                    MaximaWireProtocol.readPayload(in));
+                        }
+                    }
+                } catch (IOException e) {
+                    /* (Closed) */
+                }
+            }
+        };
+        serverThread.start();
+        try {
+            final MaximaServerNode node = new MaximaServerNode(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()), 1000);
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(i + ";", node.call(i + ";", 5, 5000).payload);
+            }
+        } finally {
+            serverSocket.close();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        servers.get(0).stop();
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("1", client.executeCall("session" + i, "1;", 5));
+        }
+        Assert.assertEquals(SERVER_COUNT - 1, client.getHealthyServers().size());
+    }
+}